@@ -0,0 +1,282 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays whole episodes of MinimaxAlphaBeta or MonteCarloTreeSearch against the ArcherAgent on each map in BenchmarkStates.MAPS,
+ * without a VisualAgent or GameConfig file, and reports how well and how fast the agent plays.
+ * This is what a change to the search should be checked with before it ships.
+ *
+ * Usage: BatchRunner [name=value ...]
+ *   episodes=<n>       episodes per map and ply setting (default 10)
+ *   plies=<n,n,...>    the ply settings to run (default 2,4,6)
+ *   parallel=<n>       how many episodes to run at once (default 1). The agent's own threads= comes on top of these
+ *   steps=<n>          the step limit of an episode, which counts as a loss (default 1000)
+ *   seed=<n>           the seed of the first episode, the others count up from it (default 0)
+ *   agent=minimax|mcts the agent to play (default minimax). MonteCarloTreeSearch has no ply setting, so its maps
+ *                      are played once, with plies reported as -
+ * Any other name=value is passed on to every agent, like time=500 or tt=0.
+ * Run from the project directory with the ArcherAgent (bin/) and Sepia.jar on the class path.
+ *
+ * Episodes run in SEPIA's Environment on a SimpleModel, the same as SimpleModelEpisodicRunner,
+ * so damage is random and the archers move. One line is printed per map and ply setting, as comma separated
+ * values (map, plies, episodes, wins, win rate, mean steps to win, mean and p99 milliseconds per decision,
+ * decisions), so two builds can be compared by diffing their output. A decision is one initialStep or
+ * middleStep of the agent being tested. Anything the agents print themselves is dropped.
+ */
+public class BatchRunner {
+
+    private static final String ARCHER_AGENT = "ArcherAgent";
+
+    private int episodes = 10;
+    private int[] plies = {2, 4, 6};
+    private int parallel = 1;
+    private int steps = 1000;
+    private int seed = 0;
+    private boolean mcts = false;
+    private final List<String> agentArgs = new ArrayList<String>();
+
+    public static void main(String[] args) {
+        // the agents print as they play, which would bury the results
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        ExecutorService pool = null;
+        int status = 1;
+        try {
+            BatchRunner runner = new BatchRunner(args);
+            out.println("map,plies,episodes,wins,win rate,steps to win,mean ms,p99 ms,decisions");
+            pool = Executors.newFixedThreadPool(runner.parallel);
+            for(String map: BenchmarkStates.MAPS) {
+                if(runner.mcts) {
+                    out.println(runner.run(pool, map, 0));
+                    continue;
+                }
+                for(int plies: runner.plies) {
+                    out.println(runner.run(pool, map, plies));
+                }
+            }
+            status = 0;
+        } catch(Throwable e) {
+            e.printStackTrace();
+        } finally {
+            if(pool != null) {
+                pool.shutdownNow();
+            }
+            System.setOut(out);
+            // SEPIA's agent threads don't stop with their episode, so the JVM would never end by itself,
+            // and a failed run must not hang
+            System.exit(status);
+        }
+    }
+
+    private BatchRunner(String[] args) {
+        for(String arg: args) {
+            int split = arg.indexOf('=');
+            String name = split > 0 ? arg.substring(0, split) : arg;
+            String value = split > 0 ? arg.substring(split + 1) : "";
+            if(name.equals("episodes")) {
+                episodes = Integer.parseInt(value);
+            } else if(name.equals("plies")) {
+                String[] settings = value.split(",");
+                plies = new int[settings.length];
+                for(int i = 0; i < settings.length; i++) {
+                    plies[i] = Integer.parseInt(settings[i].trim());
+                }
+            } else if(name.equals("parallel")) {
+                parallel = Math.max(1, Integer.parseInt(value));
+            } else if(name.equals("steps")) {
+                steps = Integer.parseInt(value);
+            } else if(name.equals("seed")) {
+                seed = Integer.parseInt(value);
+            } else if(name.equals("agent")) {
+                mcts = value.equals("mcts");
+            } else {
+                agentArgs.add(arg);
+            }
+        }
+    }
+
+    // plays the episodes of one map and ply setting (0 for MonteCarloTreeSearch) and returns their results as a line of comma separated values
+    private String run(ExecutorService pool, final String map, final int plies) throws Exception {
+        List<Future<Episode>> futures = new ArrayList<Future<Episode>>();
+        for(int i = 0; i < episodes; i++) {
+            final int episodeSeed = seed + i;
+            futures.add(pool.submit(new Callable<Episode>() {
+                @Override
+                public Episode call() throws Exception {
+                    return play(map, plies, episodeSeed);
+                }
+            }));
+        }
+        int wins = 0;
+        long stepsToWin = 0;
+        List<Long> latencies = new ArrayList<Long>();
+        for(Future<Episode> future: futures) {
+            Episode episode = future.get();
+            if(episode.won) {
+                wins++;
+                stepsToWin += episode.steps;
+            }
+            latencies.addAll(episode.latencies);
+        }
+        long[] nanos = new long[latencies.size()];
+        double mean = 0;
+        for(int i = 0; i < nanos.length; i++) {
+            nanos[i] = latencies.get(i);
+            mean += nanos[i] / 1e6 / nanos.length;
+        }
+        Arrays.sort(nanos);
+        // nearest rank
+        double p99 = nanos.length > 0 ? nanos[(int) Math.ceil(0.99 * nanos.length) - 1] / 1e6 : 0;
+        return String.format("%s,%s,%d,%d,%.3f,%.1f,%.3f,%.3f,%d", map, mcts ? "-" : Integer.toString(plies),
+                episodes, wins, (double) wins / episodes,
+                wins > 0 ? (double) stepsToWin / wins : Double.NaN, mean, p99, nanos.length);
+    }
+
+    // plays one episode to the end
+    private Episode play(final String map, int plies, int episodeSeed) throws Exception {
+        TimedAgent agent;
+        if(mcts) {
+            agent = new TimedAgent(new MonteCarloTreeSearch(0, agentArgs.toArray(new String[agentArgs.size()])));
+        } else {
+            String[] args = new String[agentArgs.size() + 1];
+            args[0] = Integer.toString(plies);
+            for(int i = 0; i < agentArgs.size(); i++) {
+                args[i + 1] = agentArgs.get(i);
+            }
+            agent = new TimedAgent(new MinimaxAlphaBeta(0, args));
+        }
+        State state;
+        try {
+            state = runEpisode(agent, newArcherAgent(), map, episodeSeed, steps);
+        } finally {
+            // SEPIA's thread for the agent outlives the episode and keeps the TimedAgent, but not the agent in it
+            agent.release();
+        }
+        boolean won = !state.getUnits(0).isEmpty() && state.getUnits(1).isEmpty();
+        return new Episode(won, state.getTurnNumber(), agent.latencies);
+    }
+
+    // a new ArcherAgent, the opponent the agents are tested against
+    static Agent newArcherAgent() throws Exception {
+        return (Agent) Class.forName(ARCHER_AGENT).getConstructor(int.class, String[].class)
+                .newInstance(1, new String[] {"1"});
+    }
+
+    // plays one episode of the map between the agent (player 0) and the opponent (player 1), and returns its last state
+    static State runEpisode(Agent agent, Agent opponent, String map, int seed, int steps) throws Exception {
+        Configuration configuration = new Configuration();
+        configuration.put("environment.model.Conquest", true);
+        configuration.put("environment.model.Midas", false);
+        configuration.put("environment.model.ManifestDestiny", false);
+        configuration.put("environment.model.TimeLimit", steps);
+        SimpleModel model = new SimpleModel(BenchmarkStates.loadState(map), seed, new MapStateCreator(map), configuration);
+        Environment environment = new Environment(new Agent[] {agent, opponent}, model, seed);
+        environment.runEpisode();
+        return model.getState();
+    }
+
+    private static class Episode {
+        final boolean won;
+        final int steps;
+        final List<Long> latencies;
+
+        Episode(boolean won, int steps, List<Long> latencies) {
+            this.won = won;
+            this.steps = steps;
+            this.latencies = latencies;
+        }
+    }
+
+    // starts each episode from the map's starting state
+    private static class MapStateCreator implements StateCreator {
+        private static final long serialVersionUID = 1L;
+        private final String map;
+
+        MapStateCreator(String map) {
+            this.map = map;
+        }
+
+        @Override
+        public State createState() {
+            try {
+                return BenchmarkStates.loadState(map);
+            } catch(Exception e) {
+                throw new IllegalStateException("Unable to load " + map, e);
+            }
+        }
+    }
+
+    /**
+     * Passes everything on to another agent, timing each of its decisions.
+     */
+    private static class TimedAgent extends Agent {
+        private static final long serialVersionUID = 1L;
+        private Agent agent;    // null once the episode is over
+        final List<Long> latencies = new ArrayList<Long>();
+
+        TimedAgent(Agent agent) {
+            super(agent.getPlayerNumber());
+            this.agent = agent;
+        }
+
+        // lets the agent, with its transposition table, be collected
+        void release() {
+            agent = null;
+        }
+
+        @Override
+        public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+            long start = System.nanoTime();
+            Map<Integer, Action> actions = agent.initialStep(newstate, statehistory);
+            latencies.add(System.nanoTime() - start);
+            return actions;
+        }
+
+        @Override
+        public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+            long start = System.nanoTime();
+            Map<Integer, Action> actions = agent.middleStep(newstate, statehistory);
+            latencies.add(System.nanoTime() - start);
+            return actions;
+        }
+
+        @Override
+        public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+            agent.terminalStep(newstate, statehistory);
+        }
+
+        @Override
+        public void savePlayerData(OutputStream os) {
+            agent.savePlayerData(os);
+        }
+
+        @Override
+        public void loadPlayerData(InputStream is) {
+            agent.loadPlayerData(is);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the starting state of a map from the data/ directory without running a SEPIA environment,
+ * so the search can be measured on its own.
+ *
+ * Only what GameState and SimpleModel read is loaded: the map size, the obstacles, and each unit's position,
+ * health and template (range, attacks, armor and base health).
+ */
+public class BenchmarkStates {
+
+    // the maps the agent is deployed on
+    public static final String[] MAPS = {
+        "data/Game2fv1a_Obstacles.xml",
+        "data/Game2fv2a.xml",
+        "data/Game2fv2a_Obstacles.xml"
+    };
+
+    private BenchmarkStates() {
+    }
+
+    /**
+     * @param mapFile A SEPIA map, like data/Game2fv2a.xml
+     * @return The map's starting state as player 0 sees it
+     */
+    public static State.StateView load(String mapFile) throws Exception {
+        return loadState(mapFile).getView(0);
+    }
+
+    /**
+     * @param mapFile A SEPIA map, like data/Game2fv2a.xml
+     * @return The map's starting state, to run an episode from
+     */
+    public static State loadState(String mapFile) throws Exception {
+        Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(mapFile)).getDocumentElement();
+        State state = new State();
+        state.setSize(Integer.parseInt(root.getAttribute("xExtent")), Integer.parseInt(root.getAttribute("yExtent")));
+        for(Element player: children(root, "player")) {
+            int playerNum = number(player, "ID");
+            state.addPlayer(playerNum);
+            Map<Integer, UnitTemplate> templates = new HashMap<Integer, UnitTemplate>();
+            for(Element template: children(player, "template")) {
+                if(template.getElementsByTagName("range").getLength() == 0) {
+                    continue;  // upgrade templates
+                }
+                UnitTemplate unitTemplate = new UnitTemplate(number(template, "ID"));
+                unitTemplate.setName(text(template, "name"));
+                unitTemplate.setPlayer(playerNum);
+                unitTemplate.setRange(number(template, "range"));
+                unitTemplate.setBasicAttack(number(template, "baseAttack"));
+                unitTemplate.setPiercingAttack(number(template, "piercingAttack"));
+                unitTemplate.setArmor(number(template, "armor"));
+                unitTemplate.setBaseHealth(number(template, "baseHealth"));
+                unitTemplate.setCanMove(true);
+                templates.put(unitTemplate.ID, unitTemplate);
+                state.addTemplate(unitTemplate);
+            }
+            for(Element unitElement: children(player, "unit")) {
+                Unit unit = new Unit(templates.get(number(unitElement, "templateID")), number(unitElement, "ID"));
+                unit.setHP(number(unitElement, "currentHealth"));
+                state.addUnit(unit, number(unitElement, "xPosition"), number(unitElement, "yPosition"));
+            }
+        }
+        for(Element resource: children(root, "resourceNode")) {
+            state.addResource(new ResourceNode(ResourceNode.Type.valueOf(text(resource, "type")), number(resource, "xPosition"),
+                    number(resource, "yPosition"), number(resource, "amountRemaining"), number(resource, "ID")));
+        }
+        return state;
+    }
+
+    private static List<Element> children(Element parent, String tag) {
+        List<Element> elements = new ArrayList<Element>();
+        NodeList nodes = parent.getChildNodes();
+        for(int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if(node instanceof Element && ((Element) node).getTagName().equals(tag)) {
+                elements.add((Element) node);
+            }
+        }
+        return elements;
+    }
+
+    private static String text(Element parent, String tag) {
+        return parent.getElementsByTagName(tag).item(0).getTextContent().trim();
+    }
+
+    private static int number(Element parent, String tag) {
+        return Integer.parseInt(text(parent, tag));
+    }
+}
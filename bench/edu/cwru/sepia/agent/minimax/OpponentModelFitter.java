@@ -0,0 +1,199 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fits the opponent model MinimaxAlphaBeta's opponent=expectimax and opponent=topk search with, by counting
+ * the decisions the ArcherAgent makes (see OpponentModel), either in recorded games or in episodes played for it.
+ *
+ * Usage: OpponentModelFitter [name=value ...]
+ *   model=<file>       where to write the model (default opponent.model). An existing model there is added to
+ *   traces=<file,...>  fit from the games recorded in these search traces (see MinimaxAlphaBeta's trace= option)
+ *                      instead of playing any. The options below are then not used
+ *   episodes=<n>       episodes per map in BenchmarkStates.MAPS (default 10)
+ *   plies=<n>          the ply count of the MinimaxAlphaBeta playing the archers (default 4)
+ *   steps=<n>          the step limit of an episode (default 1000)
+ *   seed=<n>           the seed of the first episode, the others count up from it (default 0)
+ * Any other name=value is passed on to the MinimaxAlphaBeta, like in BatchRunner.
+ * Run from the project directory with the ArcherAgent (bin/) and Sepia.jar on the class path.
+ *
+ * The archers are watched playing the agent they will be searched against, so the model sees them in the
+ * positions the search will. A trace doesn't hold the archers' actions, so they are read off where the archers
+ * are at the start of the next turn (see GameState.observeReplies); only turns that follow one another in the
+ * trace are counted. The fitted weights are printed at the end.
+ */
+public class OpponentModelFitter {
+
+    public static void main(String[] args) {
+        int status = 1;
+        try {
+            fit(args);
+            status = 0;
+        } catch(Throwable e) {
+            e.printStackTrace();
+        } finally {
+            // SEPIA's agent threads don't always stop with their episode, and a failed run must not hang
+            System.exit(status);
+        }
+    }
+
+    private static void fit(String[] args) throws Exception {
+        String file = "opponent.model";
+        List<String> traces = new ArrayList<String>();
+        int episodes = 10;
+        int plies = 4;
+        int steps = 1000;
+        int seed = 0;
+        List<String> agentArgs = new ArrayList<String>();
+        for(String arg: args) {
+            int split = arg.indexOf('=');
+            String name = split > 0 ? arg.substring(0, split) : arg;
+            String value = split > 0 ? arg.substring(split + 1) : "";
+            if(name.equals("model")) {
+                file = value;
+            } else if(name.equals("traces")) {
+                traces.addAll(Arrays.asList(value.split(",")));
+            } else if(name.equals("episodes")) {
+                episodes = Integer.parseInt(value);
+            } else if(name.equals("plies")) {
+                plies = Integer.parseInt(value);
+            } else if(name.equals("steps")) {
+                steps = Integer.parseInt(value);
+            } else if(name.equals("seed")) {
+                seed = Integer.parseInt(value);
+            } else {
+                agentArgs.add(arg);
+            }
+        }
+
+        OpponentModel model = new OpponentModel();
+        if(new File(file).isFile()) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                if(!model.read(in)) {
+                    System.err.println("Starting over: " + file + " is a model of another version");
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        PrintStream out = System.out;
+        if(!traces.isEmpty()) {
+            for(String trace: traces) {
+                fitTrace(new File(trace), model);
+            }
+        } else {
+            String[] minimaxArgs = new String[agentArgs.size() + 1];
+            minimaxArgs[0] = Integer.toString(plies);
+            for(int i = 0; i < agentArgs.size(); i++) {
+                minimaxArgs[i + 1] = agentArgs.get(i);
+            }
+            // the agents print as they play
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            try {
+                for(String map: BenchmarkStates.MAPS) {
+                    for(int i = 0; i < episodes; i++) {
+                        Agent archers = new WatchedAgent(BatchRunner.newArcherAgent(), model);
+                        BatchRunner.runEpisode(new MinimaxAlphaBeta(0, minimaxArgs), archers, map, seed + i, steps);
+                    }
+                }
+            } finally {
+                System.setOut(out);
+            }
+        }
+
+        OutputStream modelOut = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            model.write(modelOut);
+        } finally {
+            modelOut.close();
+        }
+        out.println(model.decisions() + " decisions in " + file);
+        out.print(model);
+    }
+
+    // counts the archers' decisions between each two turns of a trace that follow one another
+    private static void fitTrace(File file, OpponentModel model) throws IOException {
+        SearchTrace.Reader reader = new SearchTrace.Reader(file);
+        try {
+            // each session's last turn, since agents that traced at once have their turns interleaved
+            Map<String[], SearchTrace.Turn> lastTurns = new IdentityHashMap<String[], SearchTrace.Turn>();
+            for(SearchTrace.Turn turn = reader.next(); turn != null; turn = reader.next()) {
+                SearchTrace.Turn last = lastTurns.put(turn.args, turn);
+                if(last != null && turn.statistics.turn == last.statistics.turn + 1) {
+                    last.root.observeReplies(turn.root, model);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Passes everything on to the opponent, and counts each of its decisions into the model.
+     */
+    private static class WatchedAgent extends Agent {
+        private static final long serialVersionUID = 1L;
+        private final Agent agent;
+        private final OpponentModel model;
+
+        WatchedAgent(Agent agent, OpponentModel model) {
+            super(agent.getPlayerNumber());
+            this.agent = agent;
+            this.model = model;
+        }
+
+        @Override
+        public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+            return watch(newstate, agent.initialStep(newstate, statehistory));
+        }
+
+        @Override
+        public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+            return watch(newstate, agent.middleStep(newstate, statehistory));
+        }
+
+        private Map<Integer, Action> watch(State.StateView state, Map<Integer, Action> actions) {
+            new GameState(state).observeReplies(actions, model);
+            return actions;
+        }
+
+        @Override
+        public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+            agent.terminalStep(newstate, statehistory);
+        }
+
+        @Override
+        public void savePlayerData(OutputStream os) {
+            agent.savePlayerData(os);
+        }
+
+        @Override
+        public void loadPlayerData(InputStream is) {
+            agent.loadPlayerData(is);
+        }
+    }
+}
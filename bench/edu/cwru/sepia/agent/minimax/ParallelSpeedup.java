@@ -0,0 +1,80 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.util.Arrays;
+
+/**
+ * Reports how much faster the parallel search is than the serial one on the starting position of each map.
+ *
+ * Usage: ParallelSpeedup [depth] [threads] [repetitions]
+ * (defaults: 6 plys, one thread per core, 5 repetitions). Run from the project directory so data/ is found.
+ *
+ * Every run uses a fresh agent, so neither search gets a transposition table warmed up by the other.
+ * Each agent is ended like an episode afterwards, which shuts its threads down, so they don't compete with the
+ * next run.
+ * The times printed are medians over the repetitions.
+ */
+public class ParallelSpeedup {
+
+    public static void main(String[] args) throws Exception {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("%-32s %5s %8s %12s %12s %8s %6s%n", "map", "depth", "threads", "serial ms", "parallel ms", "speedup", "same");
+        for(String map: BenchmarkStates.MAPS) {
+            State.StateView state = BenchmarkStates.load(map);
+            // warm up the JIT on both searches before timing anything
+            time(state, depth, 1);
+            time(state, depth, threads);
+
+            long[] serial = new long[repetitions];
+            long[] parallel = new long[repetitions];
+            boolean same = true;
+            for(int i = 0; i < repetitions; i++) {
+                serial[i] = time(state, depth, 1);
+                parallel[i] = time(state, depth, threads);
+                same &= value(state, depth, 1) == value(state, depth, threads);
+            }
+            double serialMillis = median(serial) / 1e6;
+            double parallelMillis = median(parallel) / 1e6;
+            System.out.printf("%-32s %5d %8d %12.2f %12.2f %8.2f %6s%n", map, depth, threads,
+                    serialMillis, parallelMillis, serialMillis / parallelMillis, same ? "yes" : "NO");
+        }
+    }
+
+    private static MinimaxAlphaBeta agent(int depth, int threads) {
+        return new MinimaxAlphaBeta(0, new String[] {Integer.toString(depth), "threads=" + threads});
+    }
+
+    // nanoseconds for one root search
+    private static long time(State.StateView state, int depth, int threads) {
+        MinimaxAlphaBeta agent = agent(depth, threads);
+        GameStateChild root = new GameStateChild(state);
+        try {
+            long start = System.nanoTime();
+            agent.alphaBetaSearch(root, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+            return System.nanoTime() - start;
+        } finally {
+            agent.terminalStep(null, null);
+        }
+    }
+
+    // the minimax value of the root, which both searches must agree on
+    private static double value(State.StateView state, int depth, int threads) {
+        MinimaxAlphaBeta agent = agent(depth, threads);
+        try {
+            return agent.getWorker().alphaBetaValue(new GameState(state), 0, depth,
+                    Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        } finally {
+            agent.terminalStep(null, null);
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,163 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays a search trace written by MinimaxAlphaBeta's trace= option: searches each recorded root again with
+ * GameState alone, no SEPIA, and reports whether the same decision comes out.
+ *
+ * Usage: TraceReplay <trace file> [turn=<n>] [name=value ...]
+ *   turn=<n>           also print the recorded and replayed values of the root children of turn n of each episode
+ * The turns are searched by a MinimaxAlphaBeta with the arguments of the agent that recorded them, so its
+ * transposition table, move ordering and principal variation carry over from turn to turn like they did.
+ * Any other argument overrides the recorded one of the same name, and a plain number the ply count,
+ * e.g. plies 6 and time=0 to search a time budgeted agent's turns to a fixed depth.
+ * The turns of agents that traced to the same file at once, like BatchRunner's parallel episodes, are told apart
+ * by their session, and each is searched by its own replaying agent.
+ *
+ * One line is printed per turn, as comma separated values (episode, turn, depth, the recorded and replayed move
+ * codes and values, whether the moves are the same, the recorded and replayed milliseconds and nodes).
+ * A search with a fixed ply count and one thread makes the same decision every time it is replayed, and the one
+ * the agent made unless the agent played from its position cache, which the replay doesn't have. A time budget
+ * or several threads make the depth reached or the move found among equal values depend on timing.
+ */
+public class TraceReplay {
+
+    // how many sessions are replayed at once, more than BatchRunner runs episodes in parallel
+    private static final int MAX_SESSIONS = 16;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("Usage: TraceReplay <trace file> [turn=<n>] [name=value ...]");
+            System.exit(1);
+        }
+        int shownTurn = -1;
+        List<String> overrides = new ArrayList<String>();
+        for(int i = 1; i < args.length; i++) {
+            if(args[i].startsWith("turn=")) {
+                shownTurn = Integer.parseInt(args[i].substring("turn=".length()));
+            } else {
+                overrides.add(args[i]);
+            }
+        }
+
+        PrintStream out = System.out;
+        // the agent prints as it plays
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        SearchTrace.Reader reader = new SearchTrace.Reader(new File(args[0]));
+        try {
+            out.println("episode,turn,depth,recorded move,replayed move,recorded value,replayed value,same,"
+                    + "recorded ms,replayed ms,recorded nodes,replayed nodes");
+            Map<String[], Session> sessions = new LinkedHashMap<String[], Session>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                // a session whose turns stopped long ago has ended, and its agent is let go
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String[], Session> eldest) {
+                    if(size() > MAX_SESSIONS) {
+                        eldest.getValue().agent.terminalStep(null, null);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            int episodes = 0;
+            int turns = 0;
+            int same = 0;
+            for(SearchTrace.Turn turn = reader.next(); turn != null; turn = reader.next()) {
+                Session session = sessions.get(turn.args);
+                if(session == null) {
+                    session = new Session(new MinimaxAlphaBeta(0, replayArgs(turn.args, overrides)));
+                    sessions.put(turn.args, session);
+                    session.episode = ++episodes;
+                } else if(turn.statistics.turn <= session.lastTurn) {
+                    // a new episode of the same agent
+                    session.agent.terminalStep(null, null);
+                    session.episode = ++episodes;
+                }
+                session.lastTurn = turn.statistics.turn;
+                int episode = session.episode;
+                MinimaxAlphaBeta agent = session.agent;
+
+                GameState best = agent.search(turn.root);
+                long move = best != turn.root ? best.getTurnMove() : 0;
+                SearchStatistics statistics = agent.getLastStatistics();
+                turns++;
+                if(move == turn.move) {
+                    same++;
+                }
+                out.println(String.format(Locale.ROOT, "%d,%d,%d,%x,%x,%.2f,%.2f,%b,%d,%d,%d,%d", episode,
+                        turn.statistics.turn, turn.statistics.depth, turn.move, move, turn.value, agent.getLastScore(),
+                        move == turn.move, turn.statistics.millis, statistics.millis, turn.statistics.nodes,
+                        statistics.nodes));
+                if(turn.statistics.turn == shownTurn) {
+                    printChildren(out, "recorded", turn.moves, turn.values);
+                    printChildren(out, "replayed", agent.getRootMoves(), agent.getRootValues());
+                }
+            }
+            out.println(same + " of " + turns + " decisions replayed the same");
+        } finally {
+            reader.close();
+            System.setOut(out);
+        }
+    }
+
+    // the agent replaying one session of the trace, and where it is
+    private static class Session {
+        final MinimaxAlphaBeta agent;
+        int episode;
+        int lastTurn;
+
+        Session(MinimaxAlphaBeta agent) {
+            this.agent = agent;
+        }
+    }
+
+    // the recorded arguments with the plies and every name=value of the overrides replaced, and without the trace and
+    // statistics output, which would be written to again
+    private static String[] replayArgs(String[] recorded, List<String> overrides) {
+        List<String> args = new ArrayList<String>(Arrays.asList(recorded));
+        args.removeAll(named(args, "trace"));
+        args.removeAll(named(args, "stats"));
+        for(String override: overrides) {
+            int split = override.indexOf('=');
+            if(split < 0) {
+                args.set(0, override);
+            } else {
+                args.removeAll(named(args, override.substring(0, split)));
+                args.add(override);
+            }
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    // the name=value arguments with the given name
+    private static List<String> named(List<String> args, String name) {
+        List<String> named = new ArrayList<String>();
+        for(int i = 1; i < args.size(); i++) {
+            if(args.get(i).toLowerCase().startsWith(name.toLowerCase() + "=")) {
+                named.add(args.get(i));
+            }
+        }
+        return named;
+    }
+
+    // prints the root children's move codes and values, in the order they were searched in
+    private static void printChildren(PrintStream out, String label, long[] moves, double[] values) {
+        for(int i = 0; i < moves.length; i++) {
+            out.println(String.format(Locale.ROOT, "  %s %x %.2f", label, moves[i], values[i]));
+        }
+    }
+}
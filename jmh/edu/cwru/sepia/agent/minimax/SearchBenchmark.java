@@ -0,0 +1,91 @@
+package edu.cwru.sepia.agent.minimax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH microbenchmarks of the search on the starting position of each map in BenchmarkStates.MAPS:
+ * move generation (GameState.getChildren and generateChildren), evaluation (what GameState.getUtility computes),
+ * move ordering (orderChildrenWithHeuristics) and full alphaBetaSearch at depths 1 to 6.
+ *
+ * Run them with mvn -B -Pbenchmark verify from the project directory, so data/ is found (see pom.xml).
+ * JMH's options select and configure them, e.g. -Djmh.args="SearchBenchmark.evaluate -p map=data/Game2fv2a.xml"
+ * or -Djmh.args="SearchBenchmark -rf csv -rff results.csv" to get results that two builds can be compared by.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"data/Game2fv1a_Obstacles.xml", "data/Game2fv2a.xml", "data/Game2fv2a_Obstacles.xml"})
+    public String map;
+
+    private GameStateChild root;
+    private List<GameStateChild> children;
+    private MinimaxAlphaBeta agent;
+
+    @Setup
+    public void setUp() throws Exception {
+        root = new GameStateChild(BenchmarkStates.load(map));
+        children = root.state.generateChildren();
+        agent = new MinimaxAlphaBeta(0, new String[] {"1", "tt=0"});
+    }
+
+    /**
+     * The searcher of the alphaBetaSearch benchmark, for each depth.
+     */
+    @State(Scope.Thread)
+    public static class Search {
+        @Param({"1", "2", "3", "4", "5", "6"})
+        public int depth;
+
+        MinimaxAlphaBeta searcher;
+
+        @Setup
+        public void setUp() {
+            // without a transposition table, so every operation does the same work instead of reusing the last one's
+            searcher = new MinimaxAlphaBeta(0, new String[] {Integer.toString(depth), "tt=0"});
+        }
+    }
+
+    @Benchmark
+    public List<GameStateChild> getChildren() {
+        return root.state.getChildren();
+    }
+
+    @Benchmark
+    public List<GameStateChild> generateChildren() {
+        return root.state.generateChildren();
+    }
+
+    // getUtility caches its value in the state, so this times the evaluation behind it
+    @Benchmark
+    public double evaluate() {
+        return root.state.evaluate();
+    }
+
+    @Benchmark
+    public List<GameStateChild> orderChildrenWithHeuristics() {
+        return agent.orderChildrenWithHeuristics(children);
+    }
+
+    @Benchmark
+    public GameStateChild alphaBetaSearch(Search search) {
+        return search.searcher.alphaBetaSearch(root, search.depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+}
@@ -0,0 +1,212 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The parts of the game that never change during a search: the map size and the obstacles.
+ * A single GameMap is shared by a root GameState and every state derived from it, so
+ * creating a child never has to copy any of it. Since the map doesn't change during an episode either,
+ * GameState reuses the previous turn's GameMap when the obstacles are the same.
+ *
+ * Cells are identified by a single int, y*xSize+x, which is also how GameState stores unit positions.
+ * The obstacles are kept as a bitmap over the cells, so checking a cell is a single bit test.
+ *
+ * Walking distances around the obstacles are found with a breadth first search from the target cell,
+ * which gives the distance from every cell on the map to it at once. These distance fields are cached
+ * by target cell, least recently used first out, so each archer position is searched at most once.
+ * On maps small enough for the field of every cell to fit in the cache, they are kept in an array by cell
+ * instead, so looking one up takes no lock and allocates nothing (Monte Carlo playouts look them up constantly).
+ */
+public class GameMap {
+
+    public final int xSize;  //map size along x-axis
+    public final int ySize;  //map size along y-axis
+
+    private final int[] obstaclesXPositions;
+    private final int[] obstaclesYPositions;
+    // bit (cell & 63) of obstacles[cell >> 6] is set if the cell holds an obstacle
+    private final long[] obstacles;
+
+    // the distance to a cell that can't be reached from the target
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+    // the distance fields kept at once hold at most this many ints in total
+    private static final int DISTANCE_CACHE_CELLS = 1 << 20;
+    private final Map<Integer, int[]> distanceFields;
+    // every distance field by target cell, on small maps (distanceFields is null then)
+    private final AtomicReferenceArray<int[]> allDistanceFields;
+
+    public GameMap(int xSize, int ySize, int[] obstaclesXPositions, int[] obstaclesYPositions) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.obstaclesXPositions = obstaclesXPositions;
+        this.obstaclesYPositions = obstaclesYPositions;
+        obstacles = new long[(xSize * ySize + 63) >> 6];
+        for(int i = 0; i < obstaclesXPositions.length; i++) {
+            if(inBounds(obstaclesXPositions[i], obstaclesYPositions[i])) {
+                int cell = cell(obstaclesXPositions[i], obstaclesYPositions[i]);
+                obstacles[cell >> 6] |= 1L << (cell & 63);
+            }
+        }
+
+        if((long) cellCount() * cellCount() <= DISTANCE_CACHE_CELLS) {
+            allDistanceFields = new AtomicReferenceArray<int[]>(cellCount());
+            distanceFields = null;
+        } else {
+            final int capacity = Math.max(4, DISTANCE_CACHE_CELLS / Math.max(1, cellCount()));
+            allDistanceFields = null;
+            distanceFields = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+    }
+
+    // whether this map was built from exactly these dimensions and obstacles
+    public boolean matches(int xSize, int ySize, int[] obstaclesXPositions, int[] obstaclesYPositions) {
+        return this.xSize == xSize && this.ySize == ySize
+                && Arrays.equals(this.obstaclesXPositions, obstaclesXPositions)
+                && Arrays.equals(this.obstaclesYPositions, obstaclesYPositions);
+    }
+
+    public boolean matches(GameMap other) {
+        return matches(other.xSize, other.ySize, other.obstaclesXPositions, other.obstaclesYPositions);
+    }
+
+    // writes the dimensions and obstacles, for read() to build the same map from
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(xSize);
+        out.writeInt(ySize);
+        out.writeInt(obstaclesXPositions.length);
+        for(int i = 0; i < obstaclesXPositions.length; i++) {
+            out.writeInt(obstaclesXPositions[i]);
+            out.writeInt(obstaclesYPositions[i]);
+        }
+    }
+
+    public static GameMap read(DataInput in) throws IOException {
+        int xSize = in.readInt();
+        int ySize = in.readInt();
+        int[] obstaclesXPositions = new int[in.readInt()];
+        int[] obstaclesYPositions = new int[obstaclesXPositions.length];
+        for(int i = 0; i < obstaclesXPositions.length; i++) {
+            obstaclesXPositions[i] = in.readInt();
+            obstaclesYPositions[i] = in.readInt();
+        }
+        return new GameMap(xSize, ySize, obstaclesXPositions, obstaclesYPositions);
+    }
+
+    // a hash of the dimensions and obstacles, the same for equal maps in any run of the program
+    public long fingerprint() {
+        long fingerprint = 31L * xSize + ySize;
+        for(long word: obstacles) {
+            fingerprint = fingerprint * 0x100000001B3L ^ word;
+        }
+        return fingerprint;
+    }
+
+    public int cell(int x, int y) {
+        return y * xSize + x;
+    }
+
+    public int x(int cell) {
+        return cell % xSize;
+    }
+
+    public int y(int cell) {
+        return cell / xSize;
+    }
+
+    public int cellCount() {
+        return xSize * ySize;
+    }
+
+    public boolean inBounds(int x, int y) {
+        return x >= 0 && x < xSize && y >= 0 && y < ySize;
+    }
+
+    public boolean isObstacle(int x, int y) {
+        return isObstacle(cell(x, y));
+    }
+
+    public boolean isObstacle(int cell) {
+        return (obstacles[cell >> 6] & (1L << (cell & 63))) != 0;
+    }
+
+    // whether two cells are one step apart north, east, south or west
+    public boolean adjacent(int a, int b) {
+        return Math.abs(x(a) - x(b)) + Math.abs(y(a) - y(b)) == 1;
+    }
+
+    /**
+     * The number of moves (north, east, south or west) it takes to walk from each cell to the target,
+     * going around obstacles but not units. Obstacles and walled off cells are UNREACHABLE.
+     * The returned array is shared, so it must not be modified.
+     * @param target The cell to measure distances to
+     * @return The distance from each cell to the target, indexed by cell
+     */
+    public int[] distancesTo(int target) {
+        if(allDistanceFields != null) {
+            int[] distances = allDistanceFields.get(target);
+            if(distances == null) {
+                // two threads may both search for the same field, which does no harm
+                distances = breadthFirstSearch(target);
+                allDistanceFields.set(target, distances);
+            }
+            return distances;
+        }
+        synchronized(distanceFields) {
+            int[] distances = distanceFields.get(target);
+            if(distances == null) {
+                distances = breadthFirstSearch(target);
+                distanceFields.put(target, distances);
+            }
+            return distances;
+        }
+    }
+
+    private int[] breadthFirstSearch(int target) {
+        int[] distances = new int[cellCount()];
+        Arrays.fill(distances, UNREACHABLE);
+        int[] queue = new int[cellCount()];
+        int head = 0;
+        int tail = 0;
+        distances[target] = 0;
+        queue[tail++] = target;
+        while(head < tail) {
+            int cell = queue[head++];
+            int x = x(cell);
+            int y = y(cell);
+            int next = distances[cell] + 1;
+            if(x > 0) {
+                tail = visit(cell - 1, next, distances, queue, tail);
+            }
+            if(x < xSize - 1) {
+                tail = visit(cell + 1, next, distances, queue, tail);
+            }
+            if(y > 0) {
+                tail = visit(cell - xSize, next, distances, queue, tail);
+            }
+            if(y < ySize - 1) {
+                tail = visit(cell + xSize, next, distances, queue, tail);
+            }
+        }
+        return distances;
+    }
+
+    // queues a neighbouring cell if it is open and hasn't been reached yet, returning the new queue tail
+    private int visit(int cell, int distance, int[] distances, int[] queue, int tail) {
+        if(distances[cell] == UNREACHABLE && !isObstacle(cell)) {
+            distances[cell] = distance;
+            queue[tail++] = cell;
+        }
+        return tail;
+    }
+}
@@ -1,18 +1,15 @@
 package edu.cwru.sepia.agent.minimax;
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.action.ActionType;
 import edu.cwru.sepia.action.DirectedAction;
-import edu.cwru.sepia.action.TargetedAction;
-//import edu.cwru.sepia.agent.AstarAgent.LocationComparator;
-//import edu.cwru.sepia.agent.AstarAgent.MapLocation;
 import edu.cwru.sepia.environment.model.state.State;
-import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 import edu.cwru.sepia.util.Direction;
 import edu.cwru.sepia.util.DistanceMetrics;
-import edu.cwru.sepia.util.Pair;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -22,33 +19,107 @@ import java.util.*;
  *
  * Add any information or methods you would like to this class,
  * but do not delete or change the signatures of the provided methods.
- * 
+ *
+ * States in the search tree are kept small: everything that cannot change during a search
+ * (the map, unit ids and stats, hash keys) is shared with the root, and each state only owns
+ * its unit positions, packed into one int[] of cells, the units' HP and the move code that produced it.
+ * A child shares its parent's HP array unless one of its moves dealt damage.
+ * SEPIA Actions are only created when asked for with getActions().
+ *
+ * Units of the same side and template are interchangeable as far as the hash goes: two states that only differ by
+ * which of two footmen with the same HP stands where hash the same, so the transposition table searches them once.
+ * They aren't quite the same state, since SEPIA carries out the units' moves in order (a unit can only move into a
+ * cell an earlier unit has left) and an archer picks the first of two targets with the same HP, but their values
+ * hardly ever differ by more than that. For the same reason the iterator leaves out joint moves that only lead to
+ * such a mirrored state of a sibling (see ChildIterator.dominated). The units keep their order, so move codes and
+ * the history heuristic still refer to the same unit all the way down the tree.
+ *
+ * In a factored search (see setFactored) a turn is split into sub-plies, one per live unit of the side to move:
+ * each child gives one unit its action, and the side to move only changes once all of its units have one.
+ * The states between are mid-turn, and their units are where the actions so far have put them, so a later unit
+ * can't move into a cell an earlier one moved to and doesn't attack a unit an earlier one has killed.
+ * A joint move plays the units' actions in the same order with the same rules, so both searches have the same
+ * children at the end of a turn: a unit that can attack strikes the unit in range with the least HP left after the
+ * earlier units' attacks, and if those killed everything in its range it moves instead. Both then find the same
+ * values, except that a won or lost value, which counts the plies to the end, counts one per unit in a factored turn.
+ * A turn of F units then has F levels of about 4 children instead of one level of up to 4^F,
+ * and alpha-beta can cut off after the first units' actions.
+ *
+ * Attacks deal SEPIA's damage without the random part, which averages out to nothing:
+ * max(1, basic attack - armor) + piercing attack. A unit whose HP reaches 0 is removed
+ * (its position becomes REMOVED), and a state where one side has no units left is terminal.
+ *
  * @author: Jake Anderson
- * @author: Joseph Tate 
+ * @author: Joseph Tate
  */
 public class GameState {
      //The player number.  Change this if the player number is not 0.
-     private static final Integer myPlayerNum=new Integer(0);
-     
+     private static final int myPlayerNum=0;
+
+     // the only directions units move in
+     private static final Direction[] MOVE_DIRECTIONS={Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST};
+
+     /*
+      * A move code packs the action of every unit of the side that moved into a long, one byte per unit
+      * (the ith unit of that side in bits 8i to 8i+7), so a side can have at most 8 units.
+      * A unit's byte is 0 if it did nothing, 1-4 for a move in MOVE_DIRECTIONS[code-1], or
+      * ATTACK_CODE+t for an attack on the opposing side's tth unit.
+      */
+     private static final int MAX_UNITS_PER_SIDE=8;
+     static final int ATTACK_CODE=0x10;
+
+     // the position of a unit that has been killed
+     static final int REMOVED=-1;
+
+     /*
+      * The utility of a won state is WIN plus the HP we have left, and of a lost one -WIN minus the HP the enemy
+      * has left, far beyond anything evaluate gives a state that isn't over. Any value beyond WIN_THRESHOLD
+      * either way is a forced result.
+      */
+     static final double WIN=1e7;
+     static final double WIN_THRESHOLD=WIN/2;
+     // how much each point of HP the enemy has lost is worth, so a hit outweighs the positional terms
+     static final double ENEMY_HP_WEIGHT=2000;
+
      //keeps track of whose turn is next, to know whether to move the friendly units or the enemies when finding children
      public boolean myTurnNext;
 
-     private int xSize;  //map size along x-axis
-     private int ySize;  //map size along y-axis
-     
-     private int[] obstaclesXPositions;
-     private int[] obstaclesYPositions;
-     
-     private Integer[] enemyUnitIds;
-     public int[] enemyUnitXPositions;
-     public int[] enemyUnitYPositions;
-     private int[] enemyUnitRange;
-     
-     private Integer[] friendlyUnitIds;
-     public int[] friendlyUnitXPositions;
-     public int[] friendlyUnitYPositions;
-     private int[] friendlyUnitRange;
-     
+     // the map of the last root state. It stays the same for a whole episode, so the bitmap is only built once
+     private static GameMap lastMap;
+
+     // shared by every state derived from the same root
+     private GameMap map;
+     private int friendlyCount;        // units [0,friendlyCount) are ours, the rest are the enemy's
+     private int[] unitIds;
+     private int[] unitGroups;         // interchangeable units (same side and template) are in the same group
+     private int[] unitRange;
+     private int[] unitAttack;         // basic attack
+     private int[] unitPiercing;       // piercing attack
+     private int[] unitArmor;
+
+     // Zobrist hashing: one random key per (group, cell), also shared.
+     // The hash is the xor of every unit's unitKey, which mixes its group's key for its cell with its HP,
+     // xored with TURN_KEY when it is the enemy's turn and with subPlyKey in the middle of a factored turn.
+     // It is updated incrementally as units move and take damage, so hashing a child costs two keys per moved unit.
+     private static final long TURN_KEY=0x9E3779B97F4A7C15L;
+     private static final long ZOBRIST_SEED=0x5EB1A5EEDL;
+     private long[][] zobristKeys;
+     // whether each turn is split into sub-plies, one per unit
+     private boolean factored;
+
+     // owned by this state
+     private int[] positions;          // the cell (see GameMap) each unit is in, REMOVED once it is dead
+     private int[] hp;                 // each unit's HP, 0 once it is dead. Shared with the parent if nothing was hit
+     private long move;                // the move code that produced this state, 0 for the root
+     // in a factored search, the unit (indexed within its side) to act next, 0 at the start of a turn,
+     // and the actions of the turn so far. Otherwise 0 and move
+     private int subPly;
+     private long turnMove;
+     private long hash;
+     // getUtility is only computed once per state, the first time it's asked for
+     private double utility;
+     private boolean utilityKnown;
+
     /**
      * You will implement this constructor. It will
      * extract all of the needed state information from the built in
@@ -74,161 +145,371 @@ public class GameState {
       * Extracts relevant information from the State.StateView
       */
     public GameState(State.StateView state) {
-         xSize=state.getXExtent();
-         ySize=state.getYExtent();
-         
          //get resource (obstacle) locations
          Integer[] resourceIds=state.getAllResourceIds().toArray(new Integer[0]);
-         obstaclesXPositions=new int[resourceIds.length];
-         obstaclesYPositions=new int[resourceIds.length];
+         int[] obstaclesXPositions=new int[resourceIds.length];
+         int[] obstaclesYPositions=new int[resourceIds.length];
          for(int i=0;i<resourceIds.length;i++) {
               obstaclesXPositions[i]=state.getResourceNode(resourceIds[i]).getXPosition();
               obstaclesYPositions[i]=state.getResourceNode(resourceIds[i]).getYPosition();
          }
-         
+         map=lastMap;
+         if(map==null || !map.matches(state.getXExtent(), state.getYExtent(), obstaclesXPositions, obstaclesYPositions)) {
+              map=new GameMap(state.getXExtent(), state.getYExtent(), obstaclesXPositions, obstaclesYPositions);
+              lastMap=map;
+         }
+
          // get the ids, locations, and ranges of the friendly units (assumption:playerNum=0)
          // support for arbitrary amount of friendly units
          // theoretically supports arbitrary friendly units (untested)
-         friendlyUnitIds=state.getUnitIds(myPlayerNum).toArray(new Integer[0]);
-         List<UnitView> myUnits = state.getUnits(myPlayerNum);
-         friendlyUnitXPositions = new int[myUnits.size()];
-         friendlyUnitYPositions = new int[myUnits.size()];
-         friendlyUnitRange = new int[myUnits.size()];
-         for(int i=0;i<myUnits.size();i++) {
-              friendlyUnitXPositions[i]=myUnits.get(i).getXPosition();
-              friendlyUnitYPositions[i]=myUnits.get(i).getYPosition();
-              friendlyUnitRange[i]=myUnits.get(i).getTemplateView().getRange();
-         }
-         
+         List<UnitView> units=new ArrayList<UnitView>(state.getUnits(myPlayerNum));
+         friendlyCount=units.size();
+
          // get the ids, locations, and ranges of the enemy units (assumption:playerNum=0)
          // support for arbitrary amount of enemies and enemy units
          // theoretically supports arbitrary enemy units (untested)
          Integer[] players=state.getPlayerNumbers();
-         ArrayList<Integer> enemies=new ArrayList<Integer>();
          for(int i=0;i<players.length;i++) {
-              if(!players[i].equals(myPlayerNum)) {
-                   enemies.add(players[i]);
-              }
-         }
-         List<Integer> enemyIds=null;
-         List<UnitView> enemyUnits=null;
-         if(enemies.size()>0) {
-              enemyIds=state.getUnitIds(enemies.get(0));
-              enemyUnits = state.getUnits(enemies.get(0));
-              if(enemies.size()>1) {
-                   for(int i=1;i<enemies.size();i++) {
-                        enemyIds=state.getUnitIds(enemies.get(i));
-                        enemyUnits.addAll(state.getUnits(enemies.get(i)));
-                   }
+              if(players[i]!=myPlayerNum) {
+                   units.addAll(state.getUnits(players[i]));
               }
          }
-         enemyUnitIds=enemyIds.toArray(new Integer[0]);
-         enemyUnitXPositions=new int[0];
-         enemyUnitYPositions=new int[0];
-         enemyUnitRange=new int[0];
-         if(enemyUnits!=null) {
-              enemyUnitXPositions = new int[enemyUnits.size()];
-              enemyUnitYPositions = new int[enemyUnits.size()];
-              enemyUnitRange=new int[enemyUnits.size()];
-              for(int i=0;i<enemyUnits.size();i++) {
-                   enemyUnitXPositions[i]=enemyUnits.get(i).getXPosition();
-                   enemyUnitYPositions[i]=enemyUnits.get(i).getYPosition();
-                   enemyUnitRange[i]=enemyUnits.get(i).getTemplateView().getRange();
+         if(friendlyCount>MAX_UNITS_PER_SIDE || units.size()-friendlyCount>MAX_UNITS_PER_SIDE) {
+              throw new IllegalArgumentException("At most "+MAX_UNITS_PER_SIDE+" units per side are supported");
+         }
+
+         unitIds=new int[units.size()];
+         unitGroups=new int[units.size()];
+         int[] templates=new int[units.size()];
+         unitRange=new int[units.size()];
+         unitAttack=new int[units.size()];
+         unitPiercing=new int[units.size()];
+         unitArmor=new int[units.size()];
+         positions=new int[units.size()];
+         hp=new int[units.size()];
+         for(int i=0;i<units.size();i++) {
+              UnitView unit=units.get(i);
+              unitIds[i]=unit.getID();
+              templates[i]=unit.getTemplateView().getID();
+              unitGroups[i]=i;
+              for(int j=0;j<i;j++) {
+                   if(templates[j]==templates[i] && (j<friendlyCount)==(i<friendlyCount)) {
+                        unitGroups[i]=unitGroups[j];
+                        break;
+                   }
+              }
+              unitRange[i]=unit.getTemplateView().getRange();
+              unitAttack[i]=unit.getTemplateView().getBasicAttack();
+              unitPiercing[i]=unit.getTemplateView().getPiercingAttack();
+              unitArmor[i]=unit.getTemplateView().getArmor();
+              positions[i]=map.cell(unit.getXPosition(), unit.getYPosition());
+              hp[i]=Math.max(unit.getHP(), 0);
+              if(hp[i]==0) {
+                   positions[i]=REMOVED;
               }
          }
-         
+
          myTurnNext=true;
+         move=0;
+         initializeHash();
     }
 
     private GameState() {
-     // for creating deep copies.
+     // for creating children.
+    }
+
+    // generates the Zobrist keys, from a fixed seed so the same map always hashes the same way, and hashes the root
+    private void initializeHash() {
+         Random random=new Random(ZOBRIST_SEED);
+         zobristKeys=new long[positions.length][map.cellCount()];
+         hash=0;
+         for(int i=0;i<positions.length;i++) {
+              for(int j=0;j<map.cellCount();j++) {
+                   zobristKeys[i][j]=random.nextLong();
+              }
+              hash^=unitKey(i, positions[i], hp[i]);
+         }
+    }
+
+    /*
+     * Writes a root state, for read() to rebuild it without SEPIA: the map, every unit's id, group, stats, position
+     * and HP, and whose turn it is. States below the root only differ from theirs in the positions and HP, so only
+     * a state at the start of a turn can be written.
+     */
+    void write(DataOutput out) throws IOException {
+         if(midTurn()) {
+              throw new IllegalStateException("Only a state at the start of a turn can be written");
+         }
+         map.write(out);
+         out.writeInt(friendlyCount);
+         out.writeInt(positions.length);
+         for(int i=0;i<positions.length;i++) {
+              out.writeInt(unitIds[i]);
+              out.writeInt(unitGroups[i]);
+              out.writeInt(unitRange[i]);
+              out.writeInt(unitAttack[i]);
+              out.writeInt(unitPiercing[i]);
+              out.writeInt(unitArmor[i]);
+              out.writeInt(positions[i]);
+              out.writeInt(hp[i]);
+         }
+         out.writeBoolean(myTurnNext);
+         out.writeBoolean(factored);
+    }
+
+    // a root state written by write(), which hashes and plays on exactly like the state that was written
+    static GameState read(DataInput in) throws IOException {
+         GameState state=new GameState();
+         GameMap map=GameMap.read(in);
+         if(lastMap==null || !lastMap.matches(map)) {
+              lastMap=map;
+         }
+         state.map=lastMap;
+         state.friendlyCount=in.readInt();
+         int count=in.readInt();
+         state.unitIds=new int[count];
+         state.unitGroups=new int[count];
+         state.unitRange=new int[count];
+         state.unitAttack=new int[count];
+         state.unitPiercing=new int[count];
+         state.unitArmor=new int[count];
+         state.positions=new int[count];
+         state.hp=new int[count];
+         for(int i=0;i<count;i++) {
+              state.unitIds[i]=in.readInt();
+              state.unitGroups[i]=in.readInt();
+              state.unitRange[i]=in.readInt();
+              state.unitAttack[i]=in.readInt();
+              state.unitPiercing[i]=in.readInt();
+              state.unitArmor[i]=in.readInt();
+              state.positions[i]=in.readInt();
+              state.hp[i]=in.readInt();
+         }
+         state.myTurnNext=in.readBoolean();
+         state.factored=in.readBoolean();
+         state.initializeHash();
+         if(!state.myTurnNext) {
+              state.hash^=TURN_KEY;
+         }
+         return state;
+    }
+
+    /**
+     * @return The Zobrist hash of the unit positions and HP and the side to move. Equal states have equal hashes.
+     */
+    public long getHash() {
+         return hash;
+    }
+
+    /**
+     * Like getHash, but without the units' HP, which random damage makes hard to predict.
+     * @return A hash of the live units' positions and the side to move
+     */
+    public long getPositionHash() {
+         long positionHash=hash;
+         for(int i=0;i<hp.length;i++) {
+              // each unit's key as if it had no HP
+              positionHash^=unitKey(i, positions[i], hp[i])^unitKey(i, positions[i], 0);
+         }
+         return positionHash;
+    }
+
+    /**
+     * Like getHash, but also tells apart states of different games: the map and each unit's side and stats
+     * are mixed in, so it identifies the state across episodes (see PositionCache). Unlike the hash, it tells
+     * interchangeable units apart, since the move codes stored under it do.
+     * @return A hash of the whole state
+     */
+    public long getGameKey() {
+         long key=map.fingerprint()*31+friendlyCount;
+         for(int i=0;i<unitRange.length;i++) {
+              key=(((key*31+unitRange[i])*31+unitAttack[i])*31+unitPiercing[i])*31+unitArmor[i];
+              key=key*31+positions[i];
+         }
+         return hash^key*0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * @return The move code of the joint action that produced this state, 0 for the root.
+     * In a factored search, only the action of the unit that just acted
+     */
+    public long getMove() {
+         return move;
+    }
+
+    // the actions of every unit that has acted this turn, as a move code. The same as getMove unless factored
+    long getTurnMove() {
+         return turnMove;
+    }
+
+    /*
+     * Splits every turn from this state on into sub-plies, one per unit (see the class comment).
+     * Only for a root, at the start of a turn.
+     */
+    void setFactored(boolean factored) {
+         this.factored=factored;
+    }
+
+    // whether some but not all units of the side to move have their action this turn
+    boolean midTurn() {
+         return subPly>0;
+    }
+
+    // whether the move that produced this state was made by our units
+    boolean friendlyMoved() {
+         return midTurn() ? myTurnNext : !myTurnNext;
+    }
+
+    // the first live unit of the side to move from the given one on (indexed within the side), or the side's count
+    private int nextUnit(int unit) {
+         int first=myTurnNext ? 0 : friendlyCount;
+         int count=(myTurnNext ? friendlyCount : positions.length)-first;
+         while(unit<count && positions[first+unit]==REMOVED) {
+              unit++;
+         }
+         return unit;
+    }
+
+    // the unit to act in this state's children in a factored search, 0 if the turn ends with them
+    private int childSubPly() {
+         if(!factored) {
+              return 0;
+         }
+         int count=myTurnNext ? friendlyCount : positions.length-friendlyCount;
+         int next=nextUnit(nextUnit(subPly)+1);
+         return next<count ? next : 0;
+    }
+
+    // the change to the hash from this state to its children, other than the units' moves and HP
+    private long childKey() {
+         int next=childSubPly();
+         return subPlyKey(subPly)^(next==0 ? TURN_KEY : subPlyKey(next));
+    }
+
+    private static long subPlyKey(int subPly) {
+         return subPly*0xD1B54A32D192ED03L;
+    }
+
+    // the byte of a move code holding the action of the given unit (indexed within its side)
+    static int unitCode(long move, int unit) {
+         return (int)(move>>>(8*unit))&0xFF;
+    }
+
+    // the hash key of a unit in the given cell (REMOVED once it is dead) with the given HP. HP can take too many
+    // values for a table of keys, so it is mixed into the cell's key. Units in the same group have the same keys
+    private long unitKey(int unit, int position, int hp) {
+         long key=position!=REMOVED ? zobristKeys[unitGroups[unit]][position] : unitGroups[unit];
+         key=(key+hp)*0x9E3779B97F4A7C15L+ZOBRIST_SEED;
+         key=(key^(key>>>30))*0xBF58476D1CE4E5B9L;
+         key=(key^(key>>>27))*0x94D049BB133111EBL;
+         return key^(key>>>31);
+    }
+
+    // the damage the attacker does to the target with each attack
+    private int damage(int attacker, int target) {
+         return Math.max(1, unitAttack[attacker]-unitArmor[target])+unitPiercing[attacker];
+    }
+
+    /**
+     * @return Whether one side has no units left, so the game is over
+     */
+    public boolean isTerminal() {
+         return isOver(positions);
+    }
+
+    private boolean isOver(int[] positions) {
+         return !anyAlive(positions, 0, friendlyCount) || !anyAlive(positions, friendlyCount, positions.length);
+    }
+
+    private static boolean anyAlive(int[] positions, int first, int last) {
+         for(int i=first;i<last;i++) {
+              if(positions[i]!=REMOVED) {
+                   return true;
+              }
+         }
+         return false;
     }
 
     /**
      * Finds the utility of the current state.
      * The utility is defined in the following manner:
-     * if you can see the enemy and no obstacles are blocking the path, add the inverse of the distance to the utility times a constant.
-     * that way, if there is a straight (or diagonal) line to the archer, you head straight for the archer.
-     * otherwise, subtract the inverse of the distance times the constant.
+     * for each footman, find the closest enemy by walking distance (around the obstacles) and add
+     * the inverse of that distance to the utility times a constant.
+     * that way, the footmen take the shortest path to the archers instead of getting stuck behind rocks.
+     * if no enemy can be reached at all, subtract the inverse of the straight line distance times the constant.
      * that way, if you can't get to the archer, you try to get out of range of his arrows until you can.
-     * also, add 10000 to the utility of the function if the  footman gets within 2 of the archer.
+     * also, add 10000 to the utility of the function if the footman is next to the archer (in its attack range).
      * That way, hitting the archer is supremely favored (as the point of the game is to kill the archer).
-     * @return The weighted linear combination of the features 
+     * on top of that, every point of HP the enemy has left costs ENEMY_HP_WEIGHT, so hitting beats just standing
+     * next to the archer. our own HP is left out: the footmen have to walk through arrows to win, and weighing
+     * the damage they take makes them hang back out of range instead. losing a footman still costs its terms.
+     * dead units are left out, and a state where one side has no units left is worth WIN either way (see WIN).
+     * The walking distances come from GameMap's cached distance fields, so they are just array lookups.
+     * @return The weighted linear combination of the features
      */
     public double getUtility() {
-    	double util= 0;
-    	Pair<Integer, Double> closestEnemy;
-		for(int j = 0; j< friendlyUnitXPositions.length; j++) {
-			if(enemyUnitXPositions != null && enemyUnitXPositions.length > 0) {
-				closestEnemy = getClosestEnemy(friendlyUnitXPositions[j], friendlyUnitYPositions[j]);
-				if(canSeeEnemy(friendlyUnitXPositions[j], friendlyUnitYPositions[j], enemyUnitXPositions[closestEnemy.a], enemyUnitYPositions[closestEnemy.a])) {
-	    		     util += xSize*ySize/(DistanceMetrics.chebyshevDistance(friendlyUnitXPositions[j], friendlyUnitYPositions[j], enemyUnitXPositions[closestEnemy.a], enemyUnitYPositions[closestEnemy.a])+1);
+    	if(!utilityKnown) {
+    		utility = evaluate(positions, hp);
+    		utilityKnown = true;
+    	}
+    	return utility;
+    }
+
+    // the utility computed again, without getUtility's caching, so SearchBenchmark can time the evaluation itself
+    double evaluate() {
+    	return evaluate(positions, hp);
+    }
+
+    // computes the utility described above, of this state's units in the given positions with the given HP
+    private double evaluate(int[] positions, int[] hp) {
+    	int friendlyHp = 0;
+    	int enemyHp = 0;
+    	for(int i = 0; i < hp.length; i++) {
+    		if(i < friendlyCount) {
+    			friendlyHp += hp[i];
+    		} else {
+    			enemyHp += hp[i];
+    		}
+    	}
+    	if(!anyAlive(positions, friendlyCount, positions.length)) {
+    		return WIN + friendlyHp;
+    	}
+    	if(!anyAlive(positions, 0, friendlyCount)) {
+    		return -WIN - enemyHp;
+    	}
+    	double util= -ENEMY_HP_WEIGHT*enemyHp;
+    	int area=map.cellCount();
+		for(int j = 0; j< friendlyCount; j++) {
+			if(positions[j] != REMOVED) {
+				// get the closest enemy by walking distance.
+				// if no enemy can be reached, the distance stays UNREACHABLE and the first live enemy is used
+				int closestEnemy = -1;
+				int dist = GameMap.UNREACHABLE;
+				for(int i = friendlyCount; i< positions.length; i++) {
+					if(positions[i] == REMOVED) {
+						continue;
+					}
+					int temp = map.distancesTo(positions[i])[positions[j]];
+					if(closestEnemy < 0 || dist > temp) {
+						dist = temp;
+						closestEnemy = i;
+					}
+				}
+				if(dist < GameMap.UNREACHABLE) {
+	    		     util += (double)area/(dist+1);
 				} else {
-					util -= xSize*ySize/(DistanceMetrics.chebyshevDistance(friendlyUnitXPositions[j], friendlyUnitYPositions[j], enemyUnitXPositions[closestEnemy.a], enemyUnitYPositions[closestEnemy.a])+1);
+					int x=map.x(positions[j]);
+					int y=map.y(positions[j]);
+					util -= area/(DistanceMetrics.chebyshevDistance(x, y, map.x(positions[closestEnemy]), map.y(positions[closestEnemy]))+1);
 				}
-	 	    	if(closestEnemy.b <2 ) {
+	 	    	// in range to attack, measured the way canAttack and SEPIA measure it
+	 	    	if(canAttack(positions, hp, j) >= 0) {
 	 	    		util +=10000;
 	 	    	}
 			}
      	}
         return util;
     }
-    /**
-     * iterates through every combination of x's and y's to see if there is an obstacle within the line of sight from the
-     * footman to the agent. returns false if something is blocking his way, otherwise, returns true.
-     * @param herox
-     * @param heroy
-     * @param x
-     * @param y
-     * @return
-     */
-    private boolean canSeeEnemy(int herox, int heroy, int x, int y) {
-    	if(x < herox) {
-    		//swap
-    		int temp = x;
-    		x = herox;
-    		herox = temp;
-    		 
-    	}
-    	if(y< heroy) {
-    		//swap
-    		int temp = y;
-    		y = heroy;
-    		heroy = temp;
-    		 
-    	}
-    	for(int i = herox; i <= x; i++ ) {
-    		for(int j = heroy; j <= y; j++) {
-    			for(int ox: obstaclesXPositions) {
-    				for(int oy: obstaclesYPositions) {
-    					if(ox == i && oy == j) {
-    						return false;
-    					}
-    				}
-    			}
-    		}
-    	}
-    	return true;
-    }
-    /**
-     * get's the closest enemy to a given position.
-     * @param x
-     * @param y
-     * @return the index of the closest enemy in the array of enemy positions and the distance
-     */
-    private Pair<Integer, Double> getClosestEnemy(int x, int y) {
-    	int index = enemyUnitXPositions.length;
-    	double dist = Double.MAX_VALUE;
-    	int temp;
-    	for(int i = 0; i< enemyUnitXPositions.length; i++) {
-    		temp =  DistanceMetrics.chebyshevDistance(x, y, enemyUnitXPositions[i], enemyUnitYPositions[i]);
-    		if( dist > temp) {
-    			dist = temp;
-    			index = i;
-    		}
-    	}
-    	return new Pair<Integer, Double>(index, dist);
-    }
 
     /**
      * You will implement this function.
@@ -248,143 +529,784 @@ public class GameState {
      */
     //This should work for arbitrary numbers and types of friendly and enemy units.
     public List<GameStateChild> getChildren() {
-         ArrayList<GameStateChild> children = new ArrayList<GameStateChild>();
-         GameState copy=copy(this);
-         copy.myTurnNext=!this.myTurnNext;
-         children.add(new GameStateChild(new HashMap<Integer, Action>(), copy));
-
-         ArrayList<GameStateChild> newChildren = new ArrayList<GameStateChild>();
-         if(myTurnNext) {     //calculate children if our turn
-              //our turn
-              for(int i=0;i<friendlyUnitIds.length;i++) {
-                   // for each friendly unit, compute possible states from states already in children.
-                   // then add the resulting states back to children, and repeat for the next unit
-                   while(!children.isEmpty()) {
-                        GameStateChild current=children.remove(0);
-                        Integer enemyToAttack=canAttack(i, true);
-                        // if a unit can attack an enemy, it does
-                        if(enemyToAttack!=null) {
-                             GameStateChild newChild=new GameStateChild(new HashMap<Integer,Action>(),GameState.copy(current.state));
-                             newChild.action.putAll(current.action);
-                             newChild.action.put(new Integer(i),Action.createPrimitiveAttack(friendlyUnitIds[i], enemyToAttack));
-                             newChildren.add(newChild);
-                        } else {
-                             //otherwise, explore all legal moves
-                             for(Direction direction: Direction.values()) {
-                                  if((direction.xComponent()==0 || direction.yComponent()==0) && isValidMove(current.state,current.state.friendlyUnitXPositions[i]+direction.xComponent(),current.state.friendlyUnitYPositions[i]+direction.yComponent())) {
-                                       GameStateChild newChild=new GameStateChild(new HashMap<Integer,Action>(),GameState.copy(current.state));
-                                       newChild.action.putAll(current.action);
-                                       newChild.action.put(new Integer(i),Action.createPrimitiveMove(friendlyUnitIds[i], direction));
-                                       newChild.state.friendlyUnitXPositions[i]+=direction.xComponent();
-                                       newChild.state.friendlyUnitYPositions[i]+=direction.yComponent();
-                                       newChildren.add(newChild);
+         List<GameStateChild> children=generateChildren();
+         for(GameStateChild child: children) {
+              child.action=child.state.getActions();
+         }
+         return children;
+    }
+
+    /*
+     * Same as getChildren, but without creating the SEPIA actions (each child's action is null).
+     * The search uses this, and only asks the chosen child for its actions with getActions.
+     */
+    List<GameStateChild> generateChildren() {
+         ArrayList<GameStateChild> children=new ArrayList<GameStateChild>();
+         for(Iterator<GameStateChild> it=children(null); it.hasNext();) {
+              children.add(it.next());
+         }
+         return children;
+    }
+
+    /*
+     * Generates the children one at a time, for a search that may cut off before it needs them all.
+     * The moves in firstMoves (0 for none) come first if they are legal here, then every other child.
+     * With a MoveOrdering, each unit tries its actions in order of history score and then of walking distance
+     * (footmen towards the nearest enemy, archers away from the nearest footman), so the joint moves
+     * come roughly best first. Without one, the order is the same as generateChildren's.
+     */
+    Iterator<GameStateChild> children(MoveOrdering ordering, long... firstMoves) {
+         return new ChildIterator(ordering, false, firstMoves);
+    }
+
+    /*
+     * The children a quiescence search looks at past the nominal depth: each unit of the side to move attacks if it
+     * can, or else only makes its tactical moves, the ones that get an enemy unit into or out of its range, best
+     * first by the ordering. A unit without any stays where it is. If no unit has an attack or a tactical move,
+     * the state is quiet and there are none.
+     * In a factored search that is decided at the start of a turn, from all the side's units, so the turn isn't
+     * taken for quiet when only a unit after the first has something to do; a turn under way is never quiet.
+     */
+    Iterator<GameStateChild> tacticalChildren(MoveOrdering ordering) {
+         return new ChildIterator(ordering, true, new long[0]);
+    }
+
+    /*
+     * The child produced by a move code, or null if it isn't one of this state's children
+     * (a dead unit does nothing, a unit that can attack must attack the unit canAttack picks once the earlier
+     * units' attacks are applied, and every other unit must make a legal move).
+     * In a factored search the move's actions are applied one sub-ply at a time, from the unit to act next up to
+     * the first live unit without one, and the state after the last is returned; the actions of units that have
+     * already acted are ignored. So this also takes a whole turn's move code to the end of the turn.
+     */
+    GameState child(long move) {
+         if(!factored) {
+              int count=myTurnNext ? friendlyCount : positions.length-friendlyCount;
+              return child(move, 0, count);
+         }
+         GameState state=this;
+         for(int unit=nextUnit(subPly);unit<MAX_UNITS_PER_SIDE && unitCode(move, unit)!=0;unit=state.subPly) {
+              state=state.child(move, unit, unit+1);
+              if(state==null || !state.midTurn()) {
+                   return state;
+              }
+         }
+         return state!=this ? state : null;
+    }
+
+    // the child produced by the actions the move code gives the side to move's units [begin, end) (indexed within
+    // the side), or null if they aren't legal here
+    private GameState child(long move, int begin, int end) {
+         // the units of the side to move; the other side's units stay where they are
+         int sideFirst=myTurnNext ? 0 : friendlyCount;
+         int sideCount=(myTurnNext ? friendlyCount : positions.length)-sideFirst;
+         int first=sideFirst+begin;
+         int last=sideFirst+Math.min(end, sideCount);
+         int opponents=myTurnNext ? friendlyCount : 0;
+         if(factored) {
+              move&=(end<MAX_UNITS_PER_SIDE ? (1L<<(8*end))-1 : -1L)&-(1L<<(8*begin));
+         } else if(sideCount<MAX_UNITS_PER_SIDE && move>>>(8*sideCount)!=0) {
+              return null;
+         }
+         int[] positions=this.positions.clone();
+         int[] hp=this.hp;
+         long hash=this.hash^childKey();
+         for(int unit=first;unit<last;unit++) {
+              int code=unitCode(move, unit-sideFirst);
+              if(this.positions[unit]==REMOVED) {
+                   if(code!=0) {
+                        return null;
+                   }
+                   continue;
+              }
+              if(canAttack(unit)>=0) {
+                   // the HP left after the earlier units' attacks picks the target, and if they killed everything
+                   // in range, the unit moves instead
+                   int target=canAttack(positions, hp, unit);
+                   if(target>=0) {
+                        if(code!=ATTACK_CODE+target) {
+                             return null;
+                        }
+                        int t=opponents+target;
+                        if(hp==this.hp) {
+                             hp=hp.clone();
+                        }
+                        hash^=setHp(positions, hp, t, Math.max(hp[t]-damage(unit, t), 0));
+                        continue;
+                   }
+              }
+              if(code<1 || code>MOVE_DIRECTIONS.length) {
+                   return null;
+              }
+              int from=positions[unit];
+              int x=map.x(from)+MOVE_DIRECTIONS[code-1].xComponent();
+              int y=map.y(from)+MOVE_DIRECTIONS[code-1].yComponent();
+              if(!isValidMove(positions, x, y)) {
+                   return null;
+              }
+              positions[unit]=map.cell(x, y);
+              hash^=unitKey(unit, from, hp[unit])^unitKey(unit, positions[unit], hp[unit]);
+         }
+         return newChild(positions, hp, move, hash);
+    }
+
+    private GameState newChild(int[] positions, int[] hp, long move, long hash) {
+         GameState child=new GameState();
+         child.map=map;
+         child.friendlyCount=friendlyCount;
+         child.unitIds=unitIds;
+         child.unitGroups=unitGroups;
+         child.unitRange=unitRange;
+         child.unitAttack=unitAttack;
+         child.unitPiercing=unitPiercing;
+         child.unitArmor=unitArmor;
+         child.zobristKeys=zobristKeys;
+         child.factored=factored;
+         child.positions=positions;
+         child.hp=hp;
+         child.move=move;
+         child.turnMove=midTurn() ? turnMove|move : move;
+         child.subPly=childSubPly();
+         child.hash=hash;
+         child.myTurnNext=child.midTurn() ? myTurnNext : !myTurnNext;
+         return child;
+    }
+
+    /*
+     * Sets the HP of a unit of the side not moving in a child being built, removing the unit if it dies
+     * or putting it back where it is in this state if it comes back to life (when an attack is taken back).
+     * Returns the change to the hash.
+     */
+    private long setHp(int[] positions, int[] hp, int unit, int newHp) {
+         int position=newHp==0 ? REMOVED : hp[unit]==0 ? this.positions[unit] : positions[unit];
+         long change=unitKey(unit, positions[unit], hp[unit])^unitKey(unit, position, newHp);
+         positions[unit]=position;
+         hp[unit]=newHp;
+         return change;
+    }
+
+    /*
+     * Walks the joint actions of the side to move like an odometer: each unit has its list of actions
+     * (nothing if it is dead, just the attack if it can attack, otherwise its moves that stay on the map
+     * and off obstacles), and the last unit's action changes fastest. Whether a move runs into another unit
+     * is checked as the actions are chosen, against where the earlier units have moved to, and attacks
+     * are applied to a working copy of the HP as they are chosen. A unit that can attack picks its target from
+     * that working HP, so it doesn't strike a unit an earlier one has killed, and if they have killed everything
+     * in its range it makes its moves instead, like any other unit (see child).
+     * Only the current combination is kept, so the memory used doesn't depend on the number of children.
+     * In a factored search there is just the one unit to act next, so this walks its actions.
+     */
+    private class ChildIterator implements Iterator<GameStateChild> {
+         private final int offset;           // the first unit to choose actions for, indexed within its side
+         private final int first;            // the same unit's index in positions
+         private final int count;            // how many units to choose actions for
+         private final int opponents;        // the first unit of the other side
+         private final long[] firstMoves;
+         private int firstMovesTried;
+         // each unit's actions as move codes, best first, in slots [4i, 4i+optionCounts[i])
+         private final byte[] options;
+         private final int[] optionCounts;
+         private final int[] nextOption;     // the slot of each unit's next action to try
+         private final boolean[] attacks;    // whether each unit can attack at the start of the turn
+         private final int[] working;        // the positions with the chosen actions applied
+         private final int[] workingHp;      // the HP with the chosen attacks applied
+         private final int[] struckHp;       // the HP unit i's target had before its attack, -1 if it didn't hit
+         private int hits;                   // how many of the chosen attacks did damage
+         private long workingMove;
+         private long workingHash;
+         private int unit;                   // the unit whose action is chosen next, count when all are chosen
+         private boolean anyTactical;        // whether some unit has an attack or a tactical move
+         private GameState next;
+
+         ChildIterator(MoveOrdering ordering, boolean tactical, long[] firstMoves) {
+              int sideFirst=myTurnNext ? 0 : friendlyCount;
+              int sideCount=(myTurnNext ? friendlyCount : positions.length)-sideFirst;
+              offset=factored ? nextUnit(subPly) : 0;
+              first=sideFirst+offset;
+              count=factored ? Math.min(1, sideCount-offset) : sideCount;
+              opponents=myTurnNext ? friendlyCount : 0;
+              if(factored) {
+                   // only the action of the unit to act next counts
+                   firstMoves=firstMoves.clone();
+                   for(int i=0;i<firstMoves.length;i++) {
+                        firstMoves[i]&=0xFFL<<(8*offset);
+                   }
+              }
+              this.firstMoves=firstMoves;
+              options=new byte[4*count];
+              optionCounts=new int[count];
+              nextOption=new int[count];
+              attacks=new boolean[count];
+              working=positions.clone();
+              workingHp=hp.clone();
+              struckHp=new int[count];
+              Arrays.fill(struckHp, -1);
+              workingHash=hash^childKey();
+              long[] keys=ordering!=null ? new long[MOVE_DIRECTIONS.length] : null;
+              for(int i=0;i<count;i++) {
+                   if(positions[first+i]==REMOVED) {
+                        options[4*i]=0;
+                        optionCounts[i]=1;
+                        continue;
+                   }
+                   if(canAttack(first+i)>=0) {
+                        // its moves are only made if the earlier units' attacks leave nothing in its range
+                        attacks[i]=true;
+                        anyTactical=true;
+                   }
+                   int from=positions[first+i];
+                   for(int d=0;d<MOVE_DIRECTIONS.length;d++) {
+                        int x=map.x(from)+MOVE_DIRECTIONS[d].xComponent();
+                        int y=map.y(from)+MOVE_DIRECTIONS[d].yComponent();
+                        if(map.inBounds(x, y) && !map.isObstacle(x, y)) {
+                             int k=optionCounts[i]++;
+                             options[4*i+k]=(byte)(d+1);
+                             if(keys!=null) {
+                                  // insertion sort, highest key first
+                                  long key=orderKey(ordering, i, d+1, map.cell(x, y));
+                                  while(k>0 && keys[k-1]<key) {
+                                       keys[k]=keys[k-1];
+                                       options[4*i+k]=options[4*i+k-1];
+                                       k--;
                                   }
+                                  keys[k]=key;
+                                  options[4*i+k]=(byte)(d+1);
                              }
                         }
                    }
-                   children=newChildren;
-                   newChildren=new ArrayList<GameStateChild>();
-              }
-         } else {
-              //their turn
-              //same as above, except the role of enemy and friendly units is reversed
-              for(int i=0;i<enemyUnitIds.length;i++) {
-                   while(!children.isEmpty()) {
-                        GameStateChild current=children.remove(0);
-                        Integer friendlyToAttack=canAttack(i, false);
-                        if(friendlyToAttack!=null) {
-                             GameStateChild newChild=new GameStateChild(new HashMap<Integer,Action>(),GameState.copy(current.state));
-                             newChild.action.putAll(current.action);
-                             newChild.action.put(new Integer(i),Action.createPrimitiveAttack(enemyUnitIds[i], friendlyToAttack));
-                             newChildren.add(newChild);
-                        } else {
-                             for(Direction direction: Direction.values()) {
-                                  if((direction.xComponent()==0 || direction.yComponent()==0) && isValidMove(current.state,current.state.enemyUnitXPositions[i]+direction.xComponent(),current.state.enemyUnitYPositions[i]+direction.yComponent())) {
-                                       GameStateChild newChild=new GameStateChild(new HashMap<Integer,Action>(),GameState.copy(current.state));
-                                       newChild.action.putAll(current.action);
-                                       newChild.action.put(new Integer(i),Action.createPrimitiveMove(enemyUnitIds[i], direction));
-                                       newChild.state.enemyUnitXPositions[i]+=direction.xComponent();
-                                       newChild.state.enemyUnitYPositions[i]+=direction.yComponent();
-                                       newChildren.add(newChild);
+                   if(tactical) {
+                        keepTactical(i);
+                   }
+              }
+              if(tactical && factored) {
+                   // the units after this one count too, and once the turn is under way, it is played out
+                   anyTactical=midTurn() || anyTacticalAction(first, sideFirst+sideCount);
+              }
+              if(tactical && !anyTactical) {
+                   // a quiet state
+                   unit=-1;
+              }
+         }
+
+         // keeps only unit i's tactical moves; if it has none, it stays where it is
+         private void keepTactical(int i) {
+              int from=positions[first+i];
+              int kept=0;
+              for(int k=0;k<optionCounts[i];k++) {
+                   int code=options[4*i+k];
+                   int x=map.x(from)+MOVE_DIRECTIONS[code-1].xComponent();
+                   int y=map.y(from)+MOVE_DIRECTIONS[code-1].yComponent();
+                   if(changesRange(first+i, map.cell(x, y))) {
+                        options[4*i+kept++]=(byte)code;
+                   }
+              }
+              if(kept>0) {
+                   anyTactical=true;
+              } else {
+                   options[4*i]=0;
+                   kept=1;
+              }
+              optionCounts[i]=kept;
+         }
+
+         // history points in the high bits, how good the cell's walking distance is for the unit's side in the low bits
+         private long orderKey(MoveOrdering ordering, int i, int code, int cell) {
+              boolean friendly=myTurnNext;
+              int distance=GameMap.UNREACHABLE;
+              int opponents=friendly ? friendlyCount : 0;
+              int opponentCount=friendly ? positions.length-friendlyCount : friendlyCount;
+              for(int j=opponents;j<opponents+opponentCount;j++) {
+                   if(positions[j]!=REMOVED) {
+                        distance=Math.min(distance, map.distancesTo(positions[j])[cell]);
+                   }
+              }
+              int closeness=friendly ? GameMap.UNREACHABLE-distance : distance;
+              return ((long)ordering.unitScore(friendly, offset+i, code)<<32)|closeness;
+         }
+
+         @Override
+         public boolean hasNext() {
+              if(next==null) {
+                   next=findNext();
+              }
+              return next!=null;
+         }
+
+         @Override
+         public GameStateChild next() {
+              if(!hasNext()) {
+                   throw new NoSuchElementException();
+              }
+              GameStateChild child=new GameStateChild(null, next);
+              next=null;
+              return child;
+         }
+
+         @Override
+         public void remove() {
+              throw new UnsupportedOperationException();
+         }
+
+         private GameState findNext() {
+              while(firstMovesTried<firstMoves.length) {
+                   long move=firstMoves[firstMovesTried++];
+                   if(move!=0 && !triedFirst(move, firstMovesTried-1)) {
+                        GameState child=child(move);
+                        if(child!=null) {
+                             return child;
+                        }
+                   }
+              }
+              while(unit>=0) {
+                   if(unit==count) {
+                        // every unit has an action; the next call picks the last unit's next one
+                        unit--;
+                        if(!triedFirst(workingMove, firstMoves.length) && !dominated()) {
+                             return newChild(working.clone(), hits>0 ? workingHp.clone() : hp, workingMove, workingHash);
+                        }
+                        continue;
+                   }
+                   undo(unit);
+                   if(chooseNext(unit)) {
+                        unit++;
+                   } else {
+                        nextOption[unit]=0;
+                        unit--;
+                   }
+              }
+              return null;
+         }
+
+         /*
+          * Whether the chosen actions lead to the mirror of a state another of this iterator's joint moves leads to:
+          * two interchangeable units with the same HP each moving to the cell the other could have moved to instead.
+          * (They can't swap cells, since a unit can't move into a cell a unit is still in.) The two states hash the
+          * same, so only the move that sends the units to their cells in the order of the cells is kept. The other is
+          * only left out if it is legal too: each cell is one step from the other unit, and the unit moving first
+          * doesn't run into a unit in between that hasn't moved yet.
+          */
+         private boolean dominated() {
+              for(int i=0;i<count;i++) {
+                   int a=first+i;
+                   int codeA=unitCode(workingMove, offset+i);
+                   if(codeA<1 || codeA>MOVE_DIRECTIONS.length) {
+                        continue;
+                   }
+                   for(int j=i+1;j<count;j++) {
+                        int b=first+j;
+                        int codeB=unitCode(workingMove, offset+j);
+                        if(codeB<1 || codeB>MOVE_DIRECTIONS.length || working[a]<working[b]
+                                  || unitGroups[a]!=unitGroups[b] || hp[a]!=hp[b]
+                                  || !map.adjacent(positions[a], working[b]) || !map.adjacent(positions[b], working[a])) {
+                             continue;
+                        }
+                        boolean blocked=false;
+                        for(int k=a+1;k<b;k++) {
+                             blocked|=positions[k]==working[b];
+                        }
+                        if(!blocked) {
+                             return true;
+                        }
+                   }
+              }
+              return false;
+         }
+
+         // whether the move is one of the first n firstMoves
+         private boolean triedFirst(long move, int n) {
+              for(int i=0;i<n;i++) {
+                   if(firstMoves[i]==move) {
+                        return true;
+                   }
+              }
+              return false;
+         }
+
+         // applies unit i's next possible action, returns false if it has none left
+         private boolean chooseNext(int i) {
+              int shift=8*(offset+i);
+              if(attacks[i]) {
+                   int target=canAttack(working, workingHp, first+i);
+                   if(target>=0) {
+                        // the attack is its only action
+                        if(nextOption[i]>0) {
+                             return false;
+                        }
+                        nextOption[i]=1;
+                        int t=opponents+target;
+                        struckHp[i]=workingHp[t];
+                        hits++;
+                        workingHash^=setHp(working, workingHp, t, Math.max(workingHp[t]-damage(first+i, t), 0));
+                        workingMove|=(long)(ATTACK_CODE+target)<<shift;
+                        return true;
+                   }
+              }
+              while(nextOption[i]<optionCounts[i]) {
+                   int code=options[4*i+nextOption[i]++];
+                   if(code==0) {
+                        return true;
+                   }
+                   int from=working[first+i];
+                   int x=map.x(from)+MOVE_DIRECTIONS[code-1].xComponent();
+                   int y=map.y(from)+MOVE_DIRECTIONS[code-1].yComponent();
+                   if(isValidMove(working, x, y)) {
+                        int to=map.cell(x, y);
+                        working[first+i]=to;
+                        workingHash^=unitKey(first+i, from, hp[first+i])^unitKey(first+i, to, hp[first+i]);
+                        workingMove|=(long)code<<shift;
+                        return true;
+                   }
+              }
+              return false;
+         }
+
+         // takes back unit i's current action, if it has one
+         private void undo(int i) {
+              int code=unitCode(workingMove, offset+i);
+              if(code>=ATTACK_CODE && struckHp[i]>=0) {
+                   workingHash^=setHp(working, workingHp, opponents+code-ATTACK_CODE, struckHp[i]);
+                   struckHp[i]=-1;
+                   hits--;
+              } else if(code>0 && code<ATTACK_CODE) {
+                   int to=working[first+i];
+                   int from=positions[first+i];
+                   working[first+i]=from;
+                   workingHash^=unitKey(first+i, from, hp[first+i])^unitKey(first+i, to, hp[first+i]);
+              }
+              workingMove&=~(0xFFL<<(8*(offset+i)));
+         }
+    }
+
+    // the number of units on both sides, dead ones included: the length of playout's scratch arrays
+    int unitCount() {
+         return positions.length;
+    }
+
+    /*
+     * Plays a quick game from this state for Monte Carlo tree search, and returns the utility of where it stopped:
+     * when one side has no units left, or after maxPlies plies.
+     * Nothing is allocated: the game is played on the given scratch arrays, which must be exactly as long as this
+     * state's (one entry per unit). The units act in turn like in the search, and each unit attacks if it can.
+     * Otherwise it makes the legal move that is best for its side by walking distance (footmen towards the nearest
+     * enemy, archers away from the nearest footman) with probability greedy, or a random legal move.
+     */
+    double playout(Random random, int maxPlies, double greedy, int[] positions, int[] hp) {
+         System.arraycopy(this.positions, 0, positions, 0, positions.length);
+         System.arraycopy(this.hp, 0, hp, 0, hp.length);
+         boolean friendlyTurn=myTurnNext;
+         for(int ply=0;ply<maxPlies && !isOver(positions);ply++) {
+              int first=friendlyTurn ? 0 : friendlyCount;
+              int last=friendlyTurn ? friendlyCount : positions.length;
+              int opponents=friendlyTurn ? friendlyCount : 0;
+              int opponentsEnd=friendlyTurn ? positions.length : friendlyCount;
+              for(int unit=first;unit<last;unit++) {
+                   if(positions[unit]==REMOVED) {
+                        continue;
+                   }
+                   int target=canAttack(positions, hp, unit);
+                   if(target>=0) {
+                        int t=opponents+target;
+                        hp[t]=Math.max(hp[t]-damage(unit, t), 0);
+                        if(hp[t]==0) {
+                             positions[t]=REMOVED;
+                        }
+                        continue;
+                   }
+                   boolean greedyMove=random.nextDouble()<greedy;
+                   int from=positions[unit];
+                   int chosen=-1;
+                   int bestCloseness=-1;
+                   int legalMoves=0;
+                   for(int d=0;d<MOVE_DIRECTIONS.length;d++) {
+                        int x=map.x(from)+MOVE_DIRECTIONS[d].xComponent();
+                        int y=map.y(from)+MOVE_DIRECTIONS[d].yComponent();
+                        if(!isValidMove(positions, x, y)) {
+                             continue;
+                        }
+                        legalMoves++;
+                        if(greedyMove) {
+                             int cell=map.cell(x, y);
+                             int distance=GameMap.UNREACHABLE;
+                             for(int j=opponents;j<opponentsEnd;j++) {
+                                  if(positions[j]!=REMOVED) {
+                                       distance=Math.min(distance, map.distancesTo(positions[j])[cell]);
                                   }
                              }
+                             int closeness=friendlyTurn ? GameMap.UNREACHABLE-distance : distance;
+                             if(closeness>bestCloseness) {
+                                  bestCloseness=closeness;
+                                  chosen=cell;
+                             }
+                        } else if(random.nextInt(legalMoves)==0) {
+                             // reservoir sampling, so every legal move is equally likely
+                             chosen=map.cell(x, y);
                         }
                    }
-                   children=newChildren;
-                   newChildren=new ArrayList<GameStateChild>();
+                   if(chosen>=0) {
+                        positions[unit]=chosen;
+                   }
               }
+              friendlyTurn=!friendlyTurn;
          }
-         return children;
+         return evaluate(positions, hp);
     }
-    
+
     /*
-     * Creates a copy of a GameState for finding children.
-     * Specific values are later changed as needed (in getChildren)to reflect the new state.
+     * The probability the opponent model gives one of this state's children, from the move code that produces it.
+     * Units that attack or do nothing count for nothing; see OpponentModel for the rest.
      */
-    private static GameState copy(GameState state) {
-         GameState copy=new GameState();
-         copy.myTurnNext=state.myTurnNext;
-         copy.xSize=state.xSize;
-         copy.ySize=state.ySize;
-         
-         copy.obstaclesXPositions=Arrays.copyOf(state.obstaclesXPositions, state.obstaclesXPositions.length);
-         copy.obstaclesYPositions=Arrays.copyOf(state.obstaclesYPositions, state.obstaclesYPositions.length);
-         
-         copy.enemyUnitIds=Arrays.copyOf(state.enemyUnitIds, state.enemyUnitIds.length);
-         copy.enemyUnitXPositions=Arrays.copyOf(state.enemyUnitXPositions, state.enemyUnitXPositions.length);
-         copy.enemyUnitYPositions=Arrays.copyOf(state.enemyUnitYPositions, state.enemyUnitYPositions.length);
-         copy.enemyUnitRange=Arrays.copyOf(state.enemyUnitRange,state.enemyUnitRange.length);
-         
-         copy.friendlyUnitIds=Arrays.copyOf(state.friendlyUnitIds, state.friendlyUnitIds.length);
-         copy.friendlyUnitXPositions=Arrays.copyOf(state.friendlyUnitXPositions, state.friendlyUnitXPositions.length);
-         copy.friendlyUnitYPositions=Arrays.copyOf(state.friendlyUnitYPositions, state.friendlyUnitYPositions.length);
-         copy.friendlyUnitRange=Arrays.copyOf(state.friendlyUnitRange,state.friendlyUnitRange.length);
-         return copy;
-    }
-    
-    //Checks whether a location is valid to move to
-    private static boolean isValidMove(GameState state, int xPos, int yPos) {
-         // in bounds check
-         if(xPos<0 || xPos>=state.xSize || yPos<0 || yPos>=state.ySize) {
-              return false;
+    double replyProbability(long move, OpponentModel model) {
+         int first=myTurnNext ? 0 : friendlyCount;
+         int count=(myTurnNext ? friendlyCount : positions.length)-first;
+         double probability=1;
+         for(int i=0;i<count;i++) {
+              int code=unitCode(move, i);
+              if(code<1 || code>MOVE_DIRECTIONS.length) {
+                   continue;
+              }
+              int unit=first+i;
+              int context=replyContext(unit);
+              // each category's weight is shared by its moves
+              int[] moves=new int[OpponentModel.CATEGORIES];
+              int chosen=-1;
+              for(int d=0;d<MOVE_DIRECTIONS.length;d++) {
+                   int x=map.x(positions[unit])+MOVE_DIRECTIONS[d].xComponent();
+                   int y=map.y(positions[unit])+MOVE_DIRECTIONS[d].yComponent();
+                   if(isValidMove(positions, x, y)) {
+                        int category=replyCategory(unit, map.cell(x, y));
+                        moves[category]++;
+                        if(d==code-1) {
+                             chosen=category;
+                        }
+                   }
+              }
+              if(chosen<0) {
+                   continue;
+              }
+              double total=0;
+              for(int category=0;category<moves.length;category++) {
+                   if(moves[category]>0) {
+                        total+=model.weight(context, category);
+                   }
+              }
+              probability*=model.weight(context, chosen)/moves[chosen]/total;
          }
-         // checks that there is no obstacle there
-         for(int i=0;i<state.obstaclesXPositions.length;i++) {
-              if(xPos==state.obstaclesXPositions[i] && yPos==state.obstaclesYPositions[i]) {
-                   return false;
+         return probability;
+    }
+
+    /*
+     * Counts the decisions the enemy made in this state, given the actions it chose, for fitting an opponent model.
+     * Attacks are left out, since the search makes a unit that can attack do so, and so are moves into a blocked cell.
+     * A unit that moved although it could have attacked still counts: the opponent hardly ever lets our units out
+     * of its range, so its moves there are most of what there is to learn its habits from.
+     * A diagonal move, which the search doesn't make, counts by what it does to the distance like any other, and a
+     * unit out of range that did nothing counts as keeping the distance the same.
+     */
+    void observeReplies(Map<Integer, Action> actions, OpponentModel model) {
+         Map<Integer, Action> byUnit=new HashMap<Integer, Action>();
+         for(Action action: actions.values()) {
+              byUnit.put(action.getUnitId(), action);
+         }
+         for(int unit=friendlyCount;unit<positions.length;unit++) {
+              if(positions[unit]!=REMOVED) {
+                   observeReply(unit, byUnit.get(unitIds[unit]), model);
               }
          }
-         // checks that there is no enemy there
-         for(int i=0;i<state.enemyUnitXPositions.length;i++) {
-              if(xPos==state.enemyUnitXPositions[i] && yPos==state.enemyUnitYPositions[i]) {
-                   return false;
+    }
+
+    /*
+     * The same, for a recorded game (see SearchTrace), where the enemy's actions aren't known: they are read off
+     * where its units are at the start of our next turn, the given state. A unit one step from where it was moved
+     * there, and one that stayed put did nothing or attacked, which observeReplies tells apart the way it does for
+     * a unit without an action. Units that died in between, or are farther than one step away, are left out.
+     * Both states must be the roots of consecutive turns.
+     */
+    void observeReplies(GameState next, OpponentModel model) {
+         Map<Integer, Integer> nextPositions=new HashMap<Integer, Integer>();
+         for(int i=next.friendlyCount;i<next.positions.length;i++) {
+              if(next.positions[i]!=REMOVED) {
+                   nextPositions.put(next.unitIds[i], next.positions[i]);
+              }
+         }
+         for(int unit=friendlyCount;unit<positions.length;unit++) {
+              Integer to=nextPositions.get(unitIds[unit]);
+              if(positions[unit]==REMOVED || to==null) {
+                   continue;
+              }
+              int dx=map.x(to)-map.x(positions[unit]);
+              int dy=map.y(to)-map.y(positions[unit]);
+              if(Math.abs(dx)>1 || Math.abs(dy)>1) {
+                   continue;
+              }
+              Action action=dx==0 && dy==0 ? null : Action.createPrimitiveMove(unitIds[unit], Direction.getDirection(dx, dy));
+              observeReply(unit, action, model);
+         }
+    }
+
+    // counts one enemy unit's decision, given the action it chose, null if it had none
+    private void observeReply(int unit, Action action, OpponentModel model) {
+         if(action==null ? canAttack(unit)>=0 : !(action instanceof DirectedAction)) {
+              return;
+         }
+         boolean[] categories=new boolean[OpponentModel.CATEGORIES];
+         for(Direction direction: MOVE_DIRECTIONS) {
+              int x=map.x(positions[unit])+direction.xComponent();
+              int y=map.y(positions[unit])+direction.yComponent();
+              if(isValidMove(positions, x, y)) {
+                   categories[replyCategory(unit, map.cell(x, y))]=true;
+              }
+         }
+         int chosen=OpponentModel.SAME;
+         if(action!=null) {
+              Direction direction=((DirectedAction)action).getDirection();
+              int x=map.x(positions[unit])+direction.xComponent();
+              int y=map.y(positions[unit])+direction.yComponent();
+              if(!isValidMove(positions, x, y)) {
+                   return;
+              }
+              chosen=replyCategory(unit, map.cell(x, y));
+         }
+         categories[chosen]=true;
+         model.observe(replyContext(unit), categories, chosen);
+    }
+
+    // the opponent model's context of a unit: how far the nearest unit of the other side is
+    private int replyContext(int unit) {
+         int first=unit<friendlyCount ? friendlyCount : 0;
+         int last=unit<friendlyCount ? positions.length : friendlyCount;
+         int x=map.x(positions[unit]);
+         int y=map.y(positions[unit]);
+         int distance=Integer.MAX_VALUE;
+         for(int j=first;j<last;j++) {
+              if(positions[j]!=REMOVED) {
+                   distance=Math.min(distance, DistanceMetrics.chebyshevDistance(x, y, map.x(positions[j]), map.y(positions[j])));
               }
          }
-         // checks that there is no friendly unit there
-         for(int i=0;i<state.friendlyUnitXPositions.length;i++) {
-              if(xPos==state.friendlyUnitXPositions[i] && yPos==state.friendlyUnitYPositions[i]) {
+         return OpponentModel.context(distance, unitRange[unit]);
+    }
+
+    // the opponent model's category of a unit moving to the given cell: what it does to its walking distance from
+    // the nearest unit of the other side
+    private int replyCategory(int unit, int to) {
+         int first=unit<friendlyCount ? friendlyCount : 0;
+         int last=unit<friendlyCount ? positions.length : friendlyCount;
+         int before=GameMap.UNREACHABLE;
+         int after=GameMap.UNREACHABLE;
+         for(int j=first;j<last;j++) {
+              if(positions[j]!=REMOVED) {
+                   int[] distances=map.distancesTo(positions[j]);
+                   before=Math.min(before, distances[positions[unit]]);
+                   after=Math.min(after, distances[to]);
+              }
+         }
+         if(after<before) {
+              return OpponentModel.CLOSER;
+         }
+         return after==before ? OpponentModel.SAME : OpponentModel.FARTHER;
+    }
+
+    /**
+     * Creates the SEPIA actions encoded in this state's move code, or in a factored search in the actions of the
+     * turn so far.
+     * @return The actions of the side that moved into this state, keyed by unit id, as middleStep returns them
+     */
+    public Map<Integer, Action> getActions() {
+         Map<Integer, Action> actions=new HashMap<Integer, Action>();
+         boolean friendly=friendlyMoved();
+         int first=friendly ? 0 : friendlyCount;
+         int last=friendly ? friendlyCount : positions.length;
+         int opponents=friendly ? friendlyCount : 0;
+         for(int i=first;i<last;i++) {
+              int code=unitCode(turnMove, i-first);
+              if(code>=ATTACK_CODE) {
+                   actions.put(unitIds[i], Action.createPrimitiveAttack(unitIds[i], unitIds[opponents+code-ATTACK_CODE]));
+              } else if(code>0) {
+                   actions.put(unitIds[i], Action.createPrimitiveMove(unitIds[i], MOVE_DIRECTIONS[code-1]));
+              }
+         }
+         return actions;
+    }
+
+    //Checks whether a location is valid to move to, given where all of the units are
+    private boolean isValidMove(int[] positions, int xPos, int yPos) {
+         // in bounds check
+         if(!map.inBounds(xPos, yPos)) {
+              return false;
+         }
+         // checks that there is no obstacle there
+         if(map.isObstacle(xPos, yPos)) {
+              return false;
+         }
+         // checks that there is no unit there
+         int cell=map.cell(xPos, yPos);
+         for(int i=0;i<positions.length;i++) {
+              if(positions[i]==cell) {
                    return false;
               }
          }
          return true;
     }
-    
-    // checks whether there is a unit that the unit in the ith entry of the corresponding array can attack
-    // if so, returns that unit's id, otherwise, return null
-    private Integer canAttack(int i, boolean whoseAttack) {      // whoseAttack true if my units attacking, false if enemy units attacking
-         if(whoseAttack) {                                       // i refers to the index of the unit in the arrays
-              for(int j=0;j<enemyUnitIds.length;j++) {
-                   if(Math.abs(enemyUnitXPositions[j]-friendlyUnitXPositions[i])+Math.abs(enemyUnitYPositions[j]-friendlyUnitYPositions[i])<=friendlyUnitRange[i]) {
-                        return enemyUnitIds[j];
-                   }
+
+    // whether one of the units [first, last) can attack or has a tactical move (see tacticalChildren)
+    private boolean anyTacticalAction(int first, int last) {
+         for(int unit=first;unit<last;unit++) {
+              if(positions[unit]==REMOVED) {
+                   continue;
+              }
+              if(canAttack(unit)>=0) {
+                   return true;
               }
-         } else {
-              for(int j=0;j<friendlyUnitIds.length;j++) {
-                   if(Math.abs(enemyUnitXPositions[i]-friendlyUnitXPositions[j])+Math.abs(enemyUnitYPositions[i]-friendlyUnitYPositions[j])<=enemyUnitRange[i]) {
-                        return friendlyUnitIds[j];
+              for(Direction direction: MOVE_DIRECTIONS) {
+                   int x=map.x(positions[unit])+direction.xComponent();
+                   int y=map.y(positions[unit])+direction.yComponent();
+                   if(map.inBounds(x, y) && !map.isObstacle(x, y) && changesRange(unit, map.cell(x, y))) {
+                        return true;
                    }
               }
          }
-         return null;
+         return false;
+    }
+
+    // whether a unit moving to the given cell gets a unit of the other side into or out of its range
+    private boolean changesRange(int unit, int to) {
+         int first=unit<friendlyCount ? friendlyCount : 0;
+         int last=unit<friendlyCount ? positions.length : friendlyCount;
+         int fromX=map.x(positions[unit]);
+         int fromY=map.y(positions[unit]);
+         for(int j=first;j<last;j++) {
+              if(positions[j]==REMOVED) {
+                   continue;
+              }
+              int before=DistanceMetrics.chebyshevDistance(fromX, fromY, map.x(positions[j]), map.y(positions[j]));
+              int after=DistanceMetrics.chebyshevDistance(map.x(to), map.y(to), map.x(positions[j]), map.y(positions[j]));
+              if((before<=unitRange[unit])!=(after<=unitRange[unit])) {
+                   return true;
+              }
+         }
+         return false;
+    }
+
+    // checks whether there is a unit on the other side that the ith unit can attack
+    // if so, returns the index of the one with the least HP (the one closest to dying), relative to the first unit
+    // of its side, otherwise, returns -1. Like SEPIA, range is measured in chebyshev distance
+    private int canAttack(int i) {
+         return canAttack(positions, hp, i);
+    }
+
+    // the same, for this state's units in the given positions with the given HP
+    private int canAttack(int[] positions, int[] hp, int i) {
+         int x=map.x(positions[i]);
+         int y=map.y(positions[i]);
+         int first=i<friendlyCount ? friendlyCount : 0;
+         int last=i<friendlyCount ? positions.length : friendlyCount;
+         int target=-1;
+         for(int j=first;j<last;j++) {
+              if(positions[j]!=REMOVED
+                        && DistanceMetrics.chebyshevDistance(x, y, map.x(positions[j]), map.y(positions[j]))<=unitRange[i]
+                        && (target<0 || hp[j]<hp[first+target])) {
+                   target=j-first;
+              }
+         }
+         return target;
     }
 }
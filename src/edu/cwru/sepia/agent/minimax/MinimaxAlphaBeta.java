@@ -5,13 +5,28 @@ import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
 * @author: Jake Anderson
@@ -20,7 +35,100 @@ import java.util.Map;
 public class MinimaxAlphaBeta extends Agent {
 
     private final int numPlys;
+    // per-move search budget in milliseconds. 0 searches exactly numPlys every turn,
+    // otherwise the search deepens one ply at a time until the budget runs out (numPlys is then the cap)
+    private final long timeBudget;
 
+    // wall-clock deadline of the current search, and whether it has been hit
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile boolean timeUp;
+
+    // positions searched so far, kept between turns and shared by all search threads. null if disabled
+    private final TranspositionTable transpositionTable;
+
+    // how many threads a search uses, and the pool of a parallel search's threads. The pool is started by the first
+    // parallel search of an episode and shut down at its end, so an agent leaves no threads behind. null until then
+    private final int threads;
+    private ForkJoinPool pool;
+    // the history heuristic's table, shared by all search threads and aged or cleared every turn (see MoveOrdering)
+    private final int[] history = new int[MoveOrdering.HISTORY_SIZE];
+    // each search thread's worker, by thread. Kept by the agent rather than by the threads, so nothing outside the
+    // agent refers to it (and its transposition table) once it is no longer used. Cleared at the end of each episode
+    private final Map<Thread, SearchWorker> workers = new ConcurrentHashMap<Thread, SearchWorker>();
+
+    // whether each turn is searched one unit at a time (see GameState.setFactored)
+    private final boolean factored;
+
+    // how the enemy's turns are searched, and the model of its moves when not as min nodes. Loaded at the start
+    private final OpponentModel.Mode opponentMode;
+    private final OpponentModel opponentModel;
+    // the most replies an enemy turn is searched with, 0 for all of them
+    private final int replyLimit;
+
+    // how many turns past the nominal depth the search keeps following attacks and moves into or out of range
+    private final int quiescenceDepth;
+
+    // half the width of the aspiration window around the expected score, 0 to always search with the full window
+    private final double aspirationWindow;
+    // the root value of the last completed search, the expected score of the next one
+    private double lastScore;
+    private boolean lastScoreKnown;
+
+    /*
+     * The principal variation of the last completed search, as move codes from its root, and the position hash of
+     * the state each move is played in. The line is searched first by the next search (of the next iteration, or of
+     * the next turn if the units went where it predicted), from the entry at lineOffset, which matches that search's
+     * root. Positions rather than whole states are matched, since random damage rarely leaves the HP as predicted.
+     */
+    private long[] lineMoves = new long[0];
+    private long[] lineHashes = new long[0];
+    private volatile int lineOffset = -1;
+    private GameState lastRoot;
+    // the depth the last turn's search already searched this turn's root to, 0 if it didn't
+    private int searchedDepth;
+
+    // root search results kept across episodes, null if disabled. Loaded before the first move
+    // from the agent save directory, if the configuration saves agents and names one, and saved back there after each episode
+    private final PositionCache positionCache;
+    private boolean positionCacheLoaded;
+
+    // where to report search statistics at the end of an episode: "log", a .csv or .json file, or null for nowhere
+    private final String statisticsOutput;
+    private final List<SearchStatistics> episodeStatistics = new ArrayList<SearchStatistics>();
+    private SearchStatistics lastStatistics = new SearchStatistics();
+    private int turn;
+
+    // where each decision is recorded, null if nowhere or if writing to it failed
+    private SearchTrace trace;
+    // the root children of the last completed search of this turn, and their values, empty if there was none
+    private long[] rootMoves = new long[0];
+    private double[] rootValues = new double[0];
+
+    /*
+     * args[0] is the number of plys. Any further arguments are optional name=value pairs:
+     *   time=<ms>                  per-move time budget for iterative deepening
+     *   tt=<entries>               transposition table size, 0 to disable (default 262144)
+     *   ttpolicy=depth|always      transposition table replacement policy (default depth)
+     *   threads=<n>                search with n threads, 1 for a serial search (default 1)
+     *   aspiration=<width>         half width of the root's aspiration window, 0 for a full window (default the
+     *                              value of one enemy HP, GameState.ENEMY_HP_WEIGHT, which a turn's score often
+     *                              moves by. Narrower windows cut off more but fail and search again more often)
+     *   cache=<entries>            positions kept in the cache of root search results, 0 to disable (default 0). It is
+     *                              kept between runs in the agent directory if experiment.SaveAgents is true
+     *   factored=true|false        split each turn into one sub-ply per unit, so a search with many units can cut off
+     *                              within a turn (default false). The ply count still counts whole turns
+     *   opponent=minimax|expectimax|topk
+     *                              search the enemy's turns as min nodes over every reply, as the expected value of its
+     *                              likely replies, or as min nodes over its likeliest replies (default minimax)
+     *   replies=<n>                the likeliest replies searched by expectimax or topk, 0 for all (default 0 for
+     *                              expectimax, 2 for topk)
+     *   model=<file>               the opponent model fitted by OpponentModelFitter. Without one every move is as likely
+     *   quiescence=<turns>         at the nominal depth, keep searching attacks and moves into or out of range for up
+     *                              to this many more turns, 0 to stop there (default 0)
+     *   stats=log|<file>.csv|<file>.json
+     *                              report per move search statistics at the end of each episode
+     *   trace=<file>               append a record of each decision to a binary trace file, for TraceReplay
+     */
     public MinimaxAlphaBeta(int playernum, String[] args)
     {
         super(playernum);
@@ -32,36 +140,634 @@ public class MinimaxAlphaBeta extends Agent {
         }
 
         numPlys = Integer.parseInt(args[0]);
+
+        Map<String, String> options = parseOptions(args, 1);
+        timeBudget = options.containsKey("time") ? Long.parseLong(options.get("time")) : 0;
+
+        int tableSize = options.containsKey("tt") ? Integer.parseInt(options.get("tt")) : 1 << 18;
+        TranspositionTable.ReplacementPolicy policy = TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED;
+        if("always".equals(options.get("ttpolicy"))) {
+            policy = TranspositionTable.ReplacementPolicy.ALWAYS_REPLACE;
+        }
+        transpositionTable = tableSize > 0 ? new TranspositionTable(tableSize, policy) : null;
+
+        threads = options.containsKey("threads") ? Integer.parseInt(options.get("threads")) : 1;
+
+        aspirationWindow = options.containsKey("aspiration") ? Double.parseDouble(options.get("aspiration"))
+                : GameState.ENEMY_HP_WEIGHT;
+
+        int cacheSize = options.containsKey("cache") ? Integer.parseInt(options.get("cache")) : 0;
+        positionCache = cacheSize > 0 ? new PositionCache(cacheSize) : null;
+
+        factored = Boolean.parseBoolean(options.get("factored"));
+
+        String opponent = options.containsKey("opponent") ? options.get("opponent").toLowerCase() : "minimax";
+        if(opponent.equals("expectimax")) {
+            opponentMode = OpponentModel.Mode.EXPECTIMAX;
+        } else if(opponent.equals("topk")) {
+            opponentMode = OpponentModel.Mode.TOP_K;
+        } else {
+            opponentMode = OpponentModel.Mode.MINIMAX;
+        }
+        opponentModel = opponentMode != OpponentModel.Mode.MINIMAX ? loadOpponentModel(options.get("model")) : null;
+        int defaultReplies = opponentMode == OpponentModel.Mode.TOP_K ? 2 : 0;
+        replyLimit = options.containsKey("replies") ? Integer.parseInt(options.get("replies")) : defaultReplies;
+
+        quiescenceDepth = options.containsKey("quiescence") ? Integer.parseInt(options.get("quiescence")) : 0;
+
+        statisticsOutput = options.get("stats");
+        if(options.containsKey("trace")) {
+            try {
+                trace = new SearchTrace(new File(options.get("trace")), args);
+            } catch(IOException e) {
+                System.err.println("Could not open the search trace " + options.get("trace") + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // parses the name=value arguments from args[first] on. MonteCarloTreeSearch takes its options the same way
+    static Map<String, String> parseOptions(String[] args, int first) {
+        Map<String, String> options = new HashMap<String, String>();
+        for(int i = first; i < args.length; i++) {
+            int split = args[i].indexOf('=');
+            if(split < 0) {
+                System.err.println("Ignoring malformed argument " + args[i] + ", expected name=value");
+                continue;
+            }
+            options.put(args[i].substring(0, split).trim().toLowerCase(), args[i].substring(split + 1).trim());
+        }
+        return options;
+    }
+
+    // reads the opponent model from the given file, or returns one that weighs every move the same
+    private static OpponentModel loadOpponentModel(String file) {
+        OpponentModel model = new OpponentModel();
+        if(file == null) {
+            return model;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            if(!model.read(in)) {
+                System.err.println("Ignoring the opponent model " + file + ", which is of another version");
+            }
+        } catch(IOException e) {
+            System.err.println("Could not read the opponent model " + file + ": " + e.getMessage());
+        } finally {
+            close(in);
+        }
+        return model;
     }
 
     @Override
     public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+        if(positionCache != null && !positionCacheLoaded) {
+            loadPositionCache();
+        }
         return middleStep(newstate, statehistory);
     }
 
     @Override
     public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
-        GameStateChild bestChild = alphaBetaSearch(new GameStateChild(newstate),
-                numPlys,
-                Double.NEGATIVE_INFINITY,
-                Double.POSITIVE_INFINITY);
+        GameState root = new GameState(newstate);
+        GameState best = search(root);
+        if(best == root) {
+            // no legal moves, so there is nothing to do this turn
+            return new HashMap<Integer, Action>();
+        }
+        // the search only carries move codes, so this is the one place SEPIA actions get created
+        return best.getActions();
+    }
+
+    /*
+     * Decides the turn: searches the state at the start of it, and returns the state the chosen move leads to,
+     * or the root itself if there is no move. TraceReplay searches the roots of a trace with this too.
+     */
+    GameState search(GameState rootState) {
+        long start = System.currentTimeMillis();
+        GameStateChild root = new GameStateChild(null, rootState);
+        root.state.setFactored(factored);
+        GameStateChild bestChild;
+        if(transpositionTable != null) {
+            transpositionTable.newSearch();
+        }
+        lastStatistics = new SearchStatistics();
+        rootMoves = new long[0];
+        rootValues = new double[0];
+        reroot(root.state);
+        long gameKey = root.state.getGameKey();
+        PositionCache.Entry cached = positionCache != null ? positionCache.get(gameKey) : null;
+        GameState cachedChild = cached != null && cached.depth >= numPlys ? root.state.child(cached.move) : null;
+        if(cachedChild != null) {
+            // searched at least as deep before, so there is nothing to search
+            bestChild = new GameStateChild(null, cachedChild);
+            lastScore = cached.value;
+            lastScoreKnown = true;
+            lineMoves = new long[] {cached.move};
+            lineHashes = new long[] {root.state.getPositionHash()};
+            lastRoot = root.state;
+            lastStatistics.depth = cached.depth;
+            lastStatistics.cacheHits++;
+        } else if(timeBudget > 0) {
+            bestChild = iterativeDeepeningSearch(root);
+        } else {
+            deadline = Long.MAX_VALUE;
+            timeUp = false;
+            bestChild = root;
+            List<GameStateChild> children = rootChildren(root);
+            if(!children.isEmpty()) {
+                double[] scores = new double[children.size()];
+                Arrays.fill(scores, Double.NaN);
+                SplitPoint split = aspirationSearch(root, children, numPlys, scores, lastScore);
+                bestChild = children.get(split.getBestIndex());
+                completed(root, split, children, scores);
+            }
+            lastStatistics.depth = numPlys;
+            lastStatistics.depthMillis.add(System.currentTimeMillis() - start);
+        }
+        if(bestChild.state.midTurn()) {
+            bestChild = new GameStateChild(null, endOfTurn(bestChild.state));
+        }
+        collectStatistics(System.currentTimeMillis() - start);
+        if(positionCache != null && cachedChild == null && bestChild != root && lastStatistics.depth > 0) {
+            positionCache.record(gameKey, turn, lastStatistics.depth, lastScore, bestChild.state.getTurnMove());
+        }
+        if(trace != null) {
+            recordTrace(root.state, bestChild != root ? bestChild.state.getTurnMove() : 0);
+        }
+        return bestChild.state;
+    }
+
+    // appends the turn just decided to the trace. The value and the line are only known if a search of this root completed
+    private void recordTrace(GameState root, long move) {
+        boolean searched = lastRoot == root;
+        try {
+            trace.recordTurn(root, rootMoves, rootValues, move, searched ? lastScore : Double.NaN,
+                    searched ? lineMoves : new long[0], lastStatistics);
+        } catch(IOException e) {
+            System.err.println("Could not write the search trace, so it is stopped: " + e.getMessage());
+            close(trace);
+            trace = null;
+        }
+    }
+
+    /*
+     * Searches the root one ply deeper at a time until the time budget runs out or numPlys is reached.
+     * Each iteration searches the root children in the order of the previous iteration's scores,
+     * with the previous best move first, so the most promising line gets the full alpha-beta window.
+     * Its aspiration window is centred on the previous iteration's score, and the previous turn's for the first.
+     * An iteration that runs out of time is thrown away and the last completed one is played.
+     * Once an iteration finds a forced win or loss, searching deeper can't find a quicker one, so it stops there.
+     * Only a full minimax search finds forced ones: an expectimax score beyond WIN_THRESHOLD is an average over the
+     * replies the opponent model expects, and a top k search leaves the other replies out, so those search on.
+     * If last turn's search already searched the root to some depth, the iterations up to that depth would only
+     * repeat it, so after depth 1 the next iteration is one deeper. The depth 1 iteration is still searched so that
+     * a move from a completed search is played even if the deeper one runs out of time, since the transposition
+     * table's best move may only have come from a bound. It leaves the children in rootChildren's order, which
+     * puts that move first.
+     */
+    private GameStateChild iterativeDeepeningSearch(GameStateChild root) {
+        long start = System.currentTimeMillis();
+        deadline = start + timeBudget;
+        timeUp = false;
+
+        List<GameStateChild> children = rootChildren(root);
+        if(children.isEmpty()) {
+            return root;
+        }
+        GameStateChild best = children.get(0);
+        double[] scores = new double[children.size()];
+        Arrays.fill(scores, Double.NaN);
+        int firstDepth = Math.min(searchedDepth + 1, numPlys);
+        for(int depth = 1; depth <= numPlys; depth = depth < firstDepth ? firstDepth : depth + 1) {
+            SplitPoint split = aspirationSearch(root, children, depth, scores, lastScore);
+            if(timeUp) {
+                break;
+            }
+            best = children.get(split.getBestIndex());
+            completed(root, split, children, scores);
+            lastStatistics.depth = depth;
+            lastStatistics.depthMillis.add(System.currentTimeMillis() - start);
+            if(depth >= firstDepth) {
+                sortByScores(children, scores, root.state.myTurnNext);
+            }
+            if(opponentMode == OpponentModel.Mode.MINIMAX && Math.abs(lastScore) > GameState.WIN_THRESHOLD) {
+                break;
+            }
+            // an iteration costs at least as much as all of the previous ones, so don't start one we can't finish
+            if(System.currentTimeMillis() - start > timeBudget / 2) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    // the root's children, ordered by orderChildrenWithHeuristics but with the expected principal variation first,
+    // or failing that the transposition table's best move. There are none once the game is over
+    private List<GameStateChild> rootChildren(GameStateChild root) {
+        if(root.state.isTerminal()) {
+            return new ArrayList<GameStateChild>();
+        }
+        List<GameStateChild> children = orderChildrenWithHeuristics(root.state.generateChildren());
+        long move = getPrincipalVariationMove(0, root.state);
+        TranspositionTable.Entry entry = new TranspositionTable.Entry();
+        if(move == 0 && transpositionTable != null && transpositionTable.probe(root.state.getHash(), entry)) {
+            move = entry.bestMove;
+        }
+        for(int i = 1; i < children.size(); i++) {
+            if(children.get(i).state.getMove() == move) {
+                children.add(0, children.remove(i));
+                break;
+            }
+        }
+        return children;
+    }
+
+    /*
+     * Searches the root's children to the given depth, at first with a window of aspirationWindow either side
+     * of the expected score. A narrow window cuts off far more, but if the value falls outside of it the
+     * search only learns a bound, so it is repeated with that side of the window opened all the way.
+     */
+    private SplitPoint aspirationSearch(GameStateChild root, List<GameStateChild> children, int depth,
+                                        double[] scores, double expected) {
+        double alpha = Double.NEGATIVE_INFINITY;
+        double beta = Double.POSITIVE_INFINITY;
+        if(aspirationWindow > 0 && lastScoreKnown) {
+            alpha = expected - aspirationWindow;
+            beta = expected + aspirationWindow;
+        }
+        while(true) {
+            SplitPoint split = new SplitPoint(this, children, root.state.myTurnNext, 1, depth - 1, alpha, beta, scores);
+            split.search();
+            double value = split.getBestValue();
+            if(timeUp || (value > alpha && value < beta)) {
+                return split;
+            }
+            lastStatistics.researches++;
+            if(value <= alpha) {
+                alpha = Double.NEGATIVE_INFINITY;
+            } else {
+                beta = Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    /*
+     * Keeps the score and principal variation of a completed root search. The line is replayed from the root
+     * to find the hash of each state on it, so later searches can tell whether they are still following it.
+     * The children's scores are kept for the trace; a child that didn't beat the best one only has a bound, and
+     * one a cutoff skipped has NaN.
+     */
+    private void completed(GameStateChild root, SplitPoint split, List<GameStateChild> children, double[] scores) {
+        rootMoves = new long[children.size()];
+        for(int i = 0; i < rootMoves.length; i++) {
+            rootMoves[i] = children.get(i).state.getMove();
+        }
+        rootValues = scores.clone();
+        lastScore = split.getBestValue();
+        lastScoreKnown = true;
+        long[] moves = split.getBestLine();
+        long[] hashes = new long[moves.length];
+        GameState state = root.state;
+        int length = 0;
+        while(length < moves.length && state != null) {
+            hashes[length] = state.getPositionHash();
+            state = state.child(moves[length]);
+            length++;
+        }
+        lineMoves = Arrays.copyOf(moves, length);
+        lineHashes = Arrays.copyOf(hashes, length);
+        lineOffset = 0;
+        lastRoot = root.state;
+    }
 
-        return bestChild.action;
+    /*
+     * At the start of a turn, finds the new root in the last turn's search tree and carries what that search learned
+     * about the tree below it over to this one. The transposition table already holds the values and best moves.
+     * The killer moves are moved up by the plies the game has advanced and the history points are aged, so the move
+     * ordering starts where it left off, and the aspiration window is centred on the value the last search gave the
+     * new root. Iterative deepening carries on from the depth that search reached below the new root.
+     * If the game went somewhere the last search didn't look at (usually because an attack did more or
+     * less than the expected damage), the move ordering starts from scratch.
+     * The new root is matched by position hash, so re-rooting survives damage that differs from the prediction,
+     * but the values of the old tree only carry over if the HP matches too.
+     */
+    private void reroot(GameState root) {
+        followLine(root);
+        int plies = lineOffset >= 0 ? lineOffset : pliesBelow(lastRoot, root.getPositionHash(), 2);
+        if(plies >= 0) {
+            MoveOrdering.ageHistory(history);
+            lastStatistics.reroots++;
+        } else {
+            Arrays.fill(history, 0);
+        }
+        for(SearchWorker worker: workers.values()) {
+            worker.statistics.reset();
+            if(plies >= 0) {
+                worker.moveOrdering.rerootKillers(plies);
+            } else {
+                worker.moveOrdering.clearKillers();
+            }
+        }
+        searchedDepth = 0;
+        TranspositionTable.Entry entry = new TranspositionTable.Entry();
+        if(plies > 0 && transpositionTable != null && transpositionTable.probe(root.getHash(), entry)) {
+            searchedDepth = entry.depth;
+            if(entry.flag == TranspositionTable.EXACT) {
+                lastScore = entry.value;
+                lastScoreKnown = true;
+            }
+        }
+    }
+
+    // how many plies below the given state a state with the given position hash is, looking at most maxPlies turns
+    // deep, or -1
+    private static int pliesBelow(GameState state, long positionHash, int maxPlies) {
+        if(state == null) {
+            return -1;
+        }
+        if(state.getPositionHash() == positionHash) {
+            return 0;
+        }
+        if(maxPlies > 0 && !state.isTerminal()) {
+            for(GameStateChild child: state.generateChildren()) {
+                int plies = pliesBelow(child.state, positionHash, child.state.midTurn() ? maxPlies : maxPlies - 1);
+                if(plies >= 0) {
+                    return plies + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * In a factored search the best child of the root only gives the first unit its action. The other units'
+     * come from the principal variation, or failing that from the transposition table's best moves, or failing
+     * that (a search cut short by the time budget) the first child GameState.children generates.
+     */
+    private GameState endOfTurn(GameState state) {
+        TranspositionTable.Entry entry = new TranspositionTable.Entry();
+        for(int ply = 1; state.midTurn(); ply++) {
+            GameState next = null;
+            long move = getPrincipalVariationMove(ply, state);
+            if(move == 0 && transpositionTable != null && transpositionTable.probe(state.getHash(), entry)) {
+                move = entry.bestMove;
+            }
+            if(move != 0) {
+                next = state.child(move);
+            }
+            if(next == null) {
+                Iterator<GameStateChild> children = state.children(getWorker().moveOrdering);
+                if(!children.hasNext()) {
+                    // the rest of the units are boxed in, so they do nothing
+                    break;
+                }
+                next = children.next().state;
+            }
+            state = next;
+        }
+        return state;
+    }
+
+    // finds where the new root is on the last turn's principal variation, if it is on it
+    private void followLine(GameState root) {
+        lineOffset = -1;
+        for(int i = 0; i < lineHashes.length; i++) {
+            if(lineHashes[i] == root.getPositionHash()) {
+                lineOffset = i;
+                break;
+            }
+        }
+    }
+
+    /*
+     * The move the principal variation expects at the given ply of the current search, if the given state's units
+     * are where it expects them, or 0.
+     */
+    long getPrincipalVariationMove(int ply, GameState state) {
+        int offset = lineOffset;
+        if(offset < 0 || offset + ply >= lineHashes.length || lineHashes[offset + ply] != state.getPositionHash()) {
+            return 0;
+        }
+        return lineMoves[offset + ply];
+    }
+
+    /**
+     * The principal variation of the last completed search, for debugging: the moves both sides are expected to
+     * make, starting with the move that was played. Each move holds the actions of the side that made it,
+     * keyed like middleStep's actions.
+     *
+     * @return The expected line of play, empty if nothing has been searched yet
+     */
+    public List<Map<Integer, Action>> getPrincipalVariation() {
+        List<Map<Integer, Action>> line = new ArrayList<Map<Integer, Action>>();
+        GameState state = lastRoot;
+        for(int i = 0; i < lineMoves.length && state != null; i++) {
+            state = state.child(lineMoves[i]);
+            if(state != null && !state.midTurn()) {
+                line.add(state.getActions());
+            }
+        }
+        return line;
+    }
+
+    // reorders the children (and their scores) best first for the side to move
+    private static void sortByScores(List<GameStateChild> children, double[] scores, boolean maximizing) {
+        for(int i = 1; i < children.size(); i++) {
+            GameStateChild child = children.get(i);
+            double score = scores[i];
+            int j = i - 1;
+            while(j >= 0 && (maximizing ? scores[j] < score : scores[j] > score)) {
+                children.set(j + 1, children.get(j));
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            children.set(j + 1, child);
+            scores[j + 1] = score;
+        }
+    }
+
+    // adds up the workers' counters for the move just searched
+    private void collectStatistics(long millis) {
+        lastStatistics.turn = ++turn;
+        lastStatistics.millis = millis;
+        for(SearchWorker worker: workers.values()) {
+            lastStatistics.add(worker.statistics);
+        }
+        if(statisticsOutput != null) {
+            episodeStatistics.add(lastStatistics);
+        }
+    }
+
+    /**
+     * @return The statistics of the most recent middleStep's search
+     */
+    public SearchStatistics getLastStatistics() {
+        return lastStatistics;
+    }
+
+    // the root's value in the last completed search
+    double getLastScore() {
+        return lastScore;
+    }
+
+    // the root children of this turn's last completed search, and their values (see completed), empty if none completed
+    long[] getRootMoves() {
+        return rootMoves;
+    }
+
+    double[] getRootValues() {
+        return rootValues;
     }
 
     @Override
     public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+        if(statisticsOutput != null) {
+            writeStatistics();
+        }
+        episodeStatistics.clear();
+        turn = 0;
+        workers.clear();
+        synchronized(this) {
+            if(pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+        if(positionCache != null) {
+            savePositionCache();
+        }
+        if(trace != null) {
+            try {
+                trace.close();
+            } catch(IOException e) {
+                System.err.println("Could not write the search trace, so it is stopped: " + e.getMessage());
+                close(trace);
+                trace = null;
+            }
+        }
+    }
 
+    // the file the position cache is kept in between runs, or null if the configuration doesn't save agents or names no
+    // agent directory. Searches with an opponent model or a quiescence search keep their own, since their results differ
+    private File positionCacheFile() {
+        if(configuration == null || !configuration.getBoolean("experiment.SaveAgents", false)) {
+            return null;
+        }
+        String directory = configuration.getString("experiment.save.agentdirectory", null);
+        String mode = opponentMode != OpponentModel.Mode.MINIMAX ? "." + opponentMode.name().toLowerCase() : "";
+        if(quiescenceDepth > 0) {
+            mode += ".q" + quiescenceDepth;
+        }
+        return directory != null ? new File(directory, "minimax" + playernum + mode + ".cache") : null;
+    }
+
+    private void loadPositionCache() {
+        positionCacheLoaded = true;
+        File file = positionCacheFile();
+        if(file == null || !file.isFile()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            loadPlayerData(in);
+        } catch(IOException e) {
+            System.err.println("Could not read the position cache " + file + ": " + e.getMessage());
+        } finally {
+            close(in);
+        }
     }
 
+    private void savePositionCache() {
+        File file = positionCacheFile();
+        if(file == null) {
+            return;
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            savePlayerData(out);
+        } catch(IOException e) {
+            System.err.println("Could not write the position cache " + file + ": " + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if(closeable != null) {
+            try {
+                closeable.close();
+            } catch(IOException e) {
+                // nothing was lost that the read or write didn't already report
+            }
+        }
+    }
+
+    /*
+     * Reports the statistics of every move of the episode. Files are appended to, so one file can
+     * collect many episodes; each episode of a .csv file starts with a header line.
+     */
+    private void writeStatistics() {
+        if("log".equals(statisticsOutput)) {
+            for(SearchStatistics statistics: episodeStatistics) {
+                System.out.println(statistics);
+            }
+            return;
+        }
+        boolean json = statisticsOutput.endsWith(".json");
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(statisticsOutput, true));
+            if(!json) {
+                out.println(SearchStatistics.CSV_HEADER);
+            }
+            for(SearchStatistics statistics: episodeStatistics) {
+                out.println(json ? statistics.toJson() : statistics.toCsv());
+            }
+        } catch(IOException e) {
+            System.err.println("Could not write search statistics to " + statisticsOutput + ": " + e.getMessage());
+        } finally {
+            if(out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /*
+     * Writes the position cache (see PositionCache for the format). Nothing is written if the cache is disabled.
+     */
     @Override
     public void savePlayerData(OutputStream os) {
-
+        if(positionCache == null) {
+            return;
+        }
+        try {
+            positionCache.write(os);
+        } catch(IOException e) {
+            System.err.println("Could not save the position cache: " + e.getMessage());
+        }
     }
 
+    /*
+     * Adds the positions of a cache written by savePlayerData to the position cache.
+     * A cache of an older format, or an empty stream, is ignored.
+     */
     @Override
     public void loadPlayerData(InputStream is) {
-
+        if(positionCache == null) {
+            return;
+        }
+        try {
+            positionCache.read(is);
+        } catch(EOFException e) {
+            System.err.println("Ignoring a truncated position cache");
+        } catch(IOException e) {
+            System.err.println("Could not load the position cache: " + e.getMessage());
+        }
+        positionCacheLoaded = true;
     }
 
     /**
@@ -77,43 +783,79 @@ public class MinimaxAlphaBeta extends Agent {
      * @param depth The remaining number of plys under this node
      * @param alpha The current best value for the maximizing node from this node to the root
      * @param beta The current best value for the minimizing node from this node to the root
+     * The search has no time limit, whatever the agent's time budget, like middleStep's search with time=0.
+     *
      * @return The best child of this node with updated values
      */
-    public GameStateChild alphaBetaSearch(GameStateChild node, int depth, double alpha, double beta) { 
-    	List<GameStateChild> children = orderChildrenWithHeuristics(node.state.getChildren());
-    	if (depth == 0 || children==null || children.size() == 0) {
-            //return node; unnecessary, happens at end of method
-    	} else if (node.state.myTurnNext) {
-    		double v = Integer.MIN_VALUE;
-    		  for(GameStateChild child: children) {
-    			  
-    			  GameStateChild bestNode = alphaBetaSearch(child, depth - 1, alpha, beta);
-	              v = Math.max(v, bestNode.state.getUtility());
-	              if (beta <= v) {
-	                  break; // alpha pruning
-	              }
-	              if(alpha < v) {
-	            	  alpha = v;
-	            	  node = bestNode;
-	              }
-
-    		  }
-    	} else {
-	          double v = Double.MAX_VALUE;
-	          for(GameStateChild child: children) {
-    			  GameStateChild bestNode = alphaBetaSearch(child, depth - 1, alpha, beta);
-	              v = Math.min(v, bestNode.state.getUtility());
-	              if (v <= alpha) {
-	                  break; // beta pruning
-	              }
-	              if(beta > v) {
-	            	  beta = v;
-	            	  node = bestNode;
-	              }
-
-	          }
-    	}
-        return node;
+    public GameStateChild alphaBetaSearch(GameStateChild node, int depth, double alpha, double beta) {
+        // a timed search before this one may have run out of time
+        deadline = Long.MAX_VALUE;
+        timeUp = false;
+        List<GameStateChild> children = rootChildren(node);
+        if (depth == 0 || children.isEmpty()) {
+            return node;
+        }
+        // the root's children are split like any other node's, so a parallel search starts right at the root
+        SplitPoint split = new SplitPoint(this, children, node.state.myTurnNext, 1, depth - 1, alpha, beta, null);
+        split.search();
+        return children.get(split.getBestIndex());
+    }
+
+    // whether the deadline of the current search has passed
+    boolean isTimeUp() {
+        if(!timeUp && System.currentTimeMillis() >= deadline) {
+            timeUp = true;
+        }
+        return timeUp;
+    }
+
+    boolean isParallel() {
+        return threads > 1;
+    }
+
+    // the pool of a parallel search's threads, started if this is the episode's first parallel search
+    synchronized ForkJoinPool getPool() {
+        if(pool == null) {
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    TranspositionTable getTranspositionTable() {
+        return transpositionTable;
+    }
+
+    int[] getHistory() {
+        return history;
+    }
+
+    // the model the enemy's turns are searched with, null if they are searched as min nodes
+    OpponentModel getOpponentModel() {
+        return opponentModel;
+    }
+
+    boolean isExpectimax() {
+        return opponentMode == OpponentModel.Mode.EXPECTIMAX;
+    }
+
+    int getReplyLimit() {
+        return replyLimit;
+    }
+
+    int getQuiescenceDepth() {
+        return quiescenceDepth;
+    }
+
+    // the search state of the calling thread
+    SearchWorker getWorker() {
+        Thread thread = Thread.currentThread();
+        SearchWorker worker = workers.get(thread);
+        if(worker == null) {
+            // only the calling thread adds its own worker, so there is no race
+            worker = new SearchWorker(this);
+            workers.put(thread, worker);
+        }
+        return worker;
     }
 
 
@@ -137,7 +879,9 @@ public class MinimaxAlphaBeta extends Agent {
          }
          ArrayList<GameStateChild> children2=new ArrayList<GameStateChild>();
          children2.addAll(children);
-         Collections.sort(children2, new GameStateComparator());
+         // best first for whoever is choosing: highest utility first if we moved into the children, lowest if the enemy did
+         boolean weMoved = !children2.isEmpty() && children2.get(0).state.friendlyMoved();
+         Collections.sort(children2, weMoved ? REVERSE_UTILITY_ORDER : UTILITY_ORDER);
          //System.out.println(children2);
          return children2;
     }
@@ -145,19 +889,17 @@ public class MinimaxAlphaBeta extends Agent {
     /* A comparator for sorting GameStateChild in orderChildrenWithHeuristics
      * Simply compares the utility (from GameState,getUtility) of state1 and state2.
      * Returns 1 if state1 has greater utility, 0 if the utilities are equal, -1 if state2 has the greater utility
+     * Each state computes its utility once and keeps it, so the sort only evaluates every child once
+     * and the search doesn't evaluate them again when they turn out to be leaves.
      */
-    private class GameStateComparator implements Comparator<GameStateChild>
+    private static final Comparator<GameStateChild> UTILITY_ORDER = new GameStateComparator();
+    private static final Comparator<GameStateChild> REVERSE_UTILITY_ORDER = Collections.reverseOrder(UTILITY_ORDER);
+
+    private static class GameStateComparator implements Comparator<GameStateChild>
     {
           @Override
           public int compare(GameStateChild state1, GameStateChild state2) {
-               double relativeUtility=state1.state.getUtility()-state2.state.getUtility();
-               if(relativeUtility>0) {
-                    return 1;
-               } else if(relativeUtility==0) {
-                    return 0;
-               } else {
-                    return -1;
-               }
+               return Double.compare(state1.state.getUtility(), state2.state.getUtility());
           }
     }
 }
@@ -0,0 +1,314 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An anytime Monte Carlo tree search (UCT) over the same GameState model as MinimaxAlphaBeta, for skirmishes
+ * with too many units for a full width alpha-beta search to look far ahead.
+ *
+ * Each iteration walks down the tree from the root, picking the child with the best upper confidence bound for
+ * the side to move, until it reaches a node that may still grow a child. It adds that child and plays a quick game
+ * from it (GameState.playout), then adds the result to every node on the way back up. A node's children are
+ * generated one at a time, best first by GameState.children's ordering, and it may only have about
+ * 2 * sqrt(visits) of them (progressive widening), since there are too many joint moves to try them all.
+ * The move played is the root's most visited child, once the time budget or the playout cap is used up.
+ *
+ * With more than one thread, every thread runs iterations on the same tree. A thread walking down a node adds a
+ * virtual loss to it, as if it had already been visited and lost for the side choosing it, so the other threads
+ * spread out over the tree instead of all following it; the loss is taken back when the result comes in.
+ * A node's statistics and children are guarded by its parent's lock (the root's children by the root's).
+ */
+public class MonteCarloTreeSearch extends Agent {
+
+    // progressive widening: a node may have WIDENING * sqrt(visits) children, and at least one
+    private static final double WIDENING = 2;
+    // how far a playout's utility has to be from the root's to be worth about 0.73 rather than 0.5
+    private static final double REWARD_SCALE = 5 * GameState.ENEMY_HP_WEIGHT;
+
+    private final long timeBudget;
+    private final int maxPlayouts;
+    private final double exploration;
+    private final int playoutDepth;
+    private final double greedy;
+    private final int virtualLoss;
+    private final long seed;
+
+    // the threads besides the one calling middleStep. Started by the episode's first turn if the search is parallel
+    // and shut down at its end, so an agent leaves no threads behind. null until then
+    private ForkJoinPool pool;
+    private final int threads;
+
+    private volatile long deadline;
+    private final AtomicInteger playouts = new AtomicInteger();
+    private final AtomicInteger nodes = new AtomicInteger();
+    private final AtomicInteger deepest = new AtomicInteger();
+    // the utility of the current root, which rewards are measured from
+    private double rootUtility;
+
+    // orders each node's children by walking distance only, since there is no history from cutoffs
+    private final MoveOrdering ordering = new MoveOrdering(new int[MoveOrdering.HISTORY_SIZE]);
+
+    private SearchStatistics lastStatistics = new SearchStatistics();
+    private int turn;
+
+    /*
+     * Every argument is an optional name=value pair:
+     *   time=<ms>                  time budget per move (default 100)
+     *   playouts=<n>               stop after n playouts, 0 for no limit (default 0). If time is 0 this must be set
+     *   threads=<n>                search with n threads (default 1)
+     *   exploration=<c>            the UCT exploration constant (default 0.7)
+     *   playoutdepth=<plies>       the plies a playout is played out to (default 8)
+     *   greedy=<p>                 how often a playout move is the best by walking distance, rather than random (default 0.8)
+     *   virtualloss=<n>            the visits a thread passing through a node counts as lost (default 1)
+     *   seed=<n>                   the seed of the playouts' random numbers (default 0)
+     */
+    public MonteCarloTreeSearch(int playernum, String[] args) {
+        super(playernum);
+
+        Map<String, String> options = MinimaxAlphaBeta.parseOptions(args, 0);
+        maxPlayouts = options.containsKey("playouts") ? Integer.parseInt(options.get("playouts")) : 0;
+        long time = options.containsKey("time") ? Long.parseLong(options.get("time")) : 100;
+        timeBudget = time > 0 || maxPlayouts > 0 ? time : 100;
+        exploration = options.containsKey("exploration") ? Double.parseDouble(options.get("exploration")) : 0.7;
+        playoutDepth = options.containsKey("playoutdepth") ? Integer.parseInt(options.get("playoutdepth")) : 8;
+        greedy = options.containsKey("greedy") ? Double.parseDouble(options.get("greedy")) : 0.8;
+        virtualLoss = options.containsKey("virtualloss") ? Integer.parseInt(options.get("virtualloss")) : 1;
+        seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : 0;
+
+        threads = Math.max(1, options.containsKey("threads") ? Integer.parseInt(options.get("threads")) : 1);
+    }
+
+    @Override
+    public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+        return middleStep(newstate, statehistory);
+    }
+
+    @Override
+    public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+        long start = System.currentTimeMillis();
+        deadline = timeBudget > 0 ? start + timeBudget : Long.MAX_VALUE;
+        playouts.set(0);
+        nodes.set(1);
+        deepest.set(0);
+
+        final Node root = new Node(new GameState(newstate), null);
+        rootUtility = root.state.getUtility();
+        Node best = null;
+        if(!root.state.isTerminal()) {
+            if(threads > 1 && pool == null) {
+                pool = new ForkJoinPool(threads - 1);
+            }
+            List<Future<?>> helpers = new ArrayList<Future<?>>();
+            for(int i = 1; i < threads; i++) {
+                final long threadSeed = seed + turn * threads + i;
+                helpers.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        search(root, threadSeed);
+                    }
+                }));
+            }
+            search(root, seed + turn * threads);
+            for(Future<?> helper: helpers) {
+                try {
+                    helper.get();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch(ExecutionException e) {
+                    throw new IllegalStateException("A search thread failed", e.getCause());
+                }
+            }
+            best = root.mostVisitedChild();
+        }
+
+        lastStatistics = new SearchStatistics();
+        lastStatistics.turn = ++turn;
+        lastStatistics.millis = System.currentTimeMillis() - start;
+        lastStatistics.depth = deepest.get();
+        lastStatistics.nodes = nodes.get();
+        lastStatistics.leaves = playouts.get();
+
+        if(best == null) {
+            // the game is over, so there is nothing to do this turn
+            return new HashMap<Integer, Action>();
+        }
+        return best.state.getActions();
+    }
+
+    // runs iterations from the root until the time or the playouts run out
+    private void search(Node root, long threadSeed) {
+        Random random = new Random(threadSeed);
+        int[] positions = new int[root.state.unitCount()];
+        int[] hp = new int[positions.length];
+        List<Node> path = new ArrayList<Node>();
+        while(System.currentTimeMillis() < deadline) {
+            if(playouts.incrementAndGet() > maxPlayouts && maxPlayouts > 0) {
+                playouts.decrementAndGet();
+                return;
+            }
+            path.clear();
+            Node node = root;
+            while(node != null) {
+                path.add(node);
+                node = node.select();
+            }
+            Node leaf = path.get(path.size() - 1);
+            double utility = leaf.state.isTerminal() ? leaf.state.getUtility()
+                    : leaf.state.playout(random, playoutDepth, greedy, positions, hp);
+            double reward = reward(utility);
+            for(int i = path.size() - 1; i > 0; i--) {
+                path.get(i).update(reward);
+            }
+            int depth = path.size() - 1;
+            for(int d = deepest.get(); d < depth && !deepest.compareAndSet(d, depth); d = deepest.get()) {
+                // another thread went deeper in the meantime, try again
+            }
+        }
+    }
+
+    // a utility as a reward for the friendly side, between 0 (lost) and 1 (won)
+    private double reward(double utility) {
+        if(utility > GameState.WIN_THRESHOLD) {
+            return 1;
+        }
+        if(utility < -GameState.WIN_THRESHOLD) {
+            return 0;
+        }
+        return 1 / (1 + Math.exp(-(utility - rootUtility) / REWARD_SCALE));
+    }
+
+    /**
+     * @return The statistics of the most recent middleStep's search. Nodes counts the nodes of the tree,
+     * leaves the playouts, and depth the deepest node an iteration reached.
+     */
+    public SearchStatistics getLastStatistics() {
+        return lastStatistics;
+    }
+
+    @Override
+    public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+        turn = 0;
+        if(pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    // the tree is built anew every turn, so there is nothing to keep between episodes
+    @Override
+    public void savePlayerData(OutputStream os) {
+    }
+
+    @Override
+    public void loadPlayerData(InputStream is) {
+    }
+
+    private class Node {
+        final GameState state;
+        final Node parent;
+
+        // guarded by this
+        private final List<Node> children = new ArrayList<Node>();
+        private Iterator<GameStateChild> unexpanded;
+
+        // guarded by parent, and include the virtual losses of the threads below this node
+        private int visits;
+        private double rewards;     // the friendly side's rewards, summed over the visits
+
+        Node(GameState state, Node parent) {
+            this.state = state;
+            this.parent = parent;
+        }
+
+        /*
+         * Picks the child to go down to, adding a virtual loss to it, or returns null if the iteration ends here:
+         * the game is over, or this node is new, in which case it starts generating its children for the next visit.
+         */
+        synchronized Node select() {
+            if(state.isTerminal()) {
+                return null;
+            }
+            if(unexpanded == null && children.isEmpty()) {
+                unexpanded = state.children(ordering);
+                return null;
+            }
+            int total = 0;
+            for(Node child: children) {
+                total += child.visits;
+            }
+            if(unexpanded != null && children.size() < Math.max(1, WIDENING * Math.sqrt(total))) {
+                if(unexpanded.hasNext()) {
+                    Node child = new Node(unexpanded.next().state, this);
+                    children.add(child);
+                    nodes.incrementAndGet();
+                    addVirtualLoss(child);
+                    return child;
+                }
+                unexpanded = null;
+            }
+            if(children.isEmpty()) {
+                return null;
+            }
+            Node best = null;
+            double bestBound = Double.NEGATIVE_INFINITY;
+            double logTotal = Math.log(Math.max(total, 1));
+            for(Node child: children) {
+                double bound;
+                if(child.visits == 0) {
+                    bound = Double.POSITIVE_INFINITY;
+                } else {
+                    double mean = child.rewards / child.visits;
+                    bound = (state.myTurnNext ? mean : 1 - mean) + exploration * Math.sqrt(logTotal / child.visits);
+                }
+                if(bound > bestBound) {
+                    bestBound = bound;
+                    best = child;
+                }
+            }
+            addVirtualLoss(best);
+            return best;
+        }
+
+        // counts virtualLoss visits to a child, lost for the side choosing it
+        private void addVirtualLoss(Node child) {
+            child.visits += virtualLoss;
+            if(!state.myTurnNext) {
+                child.rewards += virtualLoss;
+            }
+        }
+
+        // takes back the virtual loss an iteration added when it came down this node, and adds its reward
+        void update(double reward) {
+            synchronized(parent) {
+                visits += 1 - virtualLoss;
+                rewards += reward - (parent.state.myTurnNext ? 0 : virtualLoss);
+            }
+        }
+
+        synchronized Node mostVisitedChild() {
+            Node best = null;
+            for(Node child: children) {
+                if(best == null || child.visits > best.visits) {
+                    best = child;
+                }
+            }
+            return best;
+        }
+    }
+}
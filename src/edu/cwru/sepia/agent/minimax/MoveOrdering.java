@@ -0,0 +1,179 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Orders the children of a node using what the search has learned so far this turn,
+ * since alpha-beta prunes the most when the best child comes first.
+ *
+ * In order of priority:
+ *   the killer moves: the last two moves that caused a cutoff at the same ply, in a sibling subtree.
+ *   the history heuristic: every unit action (which unit, moving which way or attacking) earns points
+ *     whenever a move containing it causes a cutoff, more for cutoffs higher in the tree.
+ *     A joint move scores the sum of its unit actions' points.
+ *   the static utility, which orderChildrenWithHeuristics has already sorted by, breaks ties.
+ * SearchWorker puts the transposition table's best move in front of all of these.
+ *
+ * order() sorts a whole list of children. Where the children are generated one at a time instead
+ * (GameState.children), the killers are tried first and each unit's actions are ordered by their history points.
+ *
+ * Killer moves are kept per search thread. The history table is shared by all of the threads of a
+ * search; it is a plain int[], so two threads rewarding at once may lose a point, which doesn't matter.
+ *
+ * Both carry over to the next turn when the game went somewhere the last search looked at (see rerootKillers
+ * and ageHistory), and are cleared when it didn't.
+ */
+class MoveOrdering {
+
+    static final int MAX_PLY = 64;
+
+    // history entries: 2 sides x 8 units per side x 5 actions (4 moves, attack)
+    private static final int ACTIONS = 5;
+    private static final int SIDE_ENTRIES = 8 * ACTIONS;
+    static final int HISTORY_SIZE = 2 * SIDE_ENTRIES;
+    // the history points are halved when one gets this big, so they never overflow
+    private static final int HISTORY_LIMIT = 1 << 24;
+
+    private static final int KILLER_SCORE = Integer.MAX_VALUE;
+
+    private final int[] history;
+    private final long[][] killers = new long[MAX_PLY][2];
+
+    /**
+     * @param history The history table shared by the search, HISTORY_SIZE long
+     */
+    MoveOrdering(int[] history) {
+        this.history = history;
+    }
+
+    // forgets the killer moves, at the start of a turn
+    void clearKillers() {
+        for(long[] plyKillers: killers) {
+            plyKillers[0] = 0;
+            plyKillers[1] = 0;
+        }
+    }
+
+    // at the start of a turn whose root was the given number of plies below the last one's, moves the killers up
+    // by that many plies, so each ply starts with the killers found at the same depth below the new root
+    void rerootKillers(int plies) {
+        for(int ply = 0; ply < MAX_PLY; ply++) {
+            int from = ply + plies;
+            killers[ply][0] = from < MAX_PLY ? killers[from][0] : 0;
+            killers[ply][1] = from < MAX_PLY ? killers[from][1] : 0;
+        }
+    }
+
+    // halves the history points at the start of a turn, so last turn's still order the first searches
+    // but this turn's cutoffs soon outweigh them
+    static void ageHistory(int[] history) {
+        for(int i = 0; i < history.length; i++) {
+            history[i] /= 2;
+        }
+    }
+
+    /**
+     * Reorders children that are already sorted by utility so the killer moves come first, followed by the rest by
+     * history score. Children with equal scores keep their order.
+     *
+     * @param children The children of a node, sorted by orderChildrenWithHeuristics
+     * @param ply The ply of the children
+     */
+    void order(List<GameStateChild> children, int ply) {
+        if(children.size() < 2) {
+            return;
+        }
+        long[] killerMoves = ply < MAX_PLY ? killers[ply] : null;
+        // sort by score, highest first, then by index: (KILLER_SCORE - score) in the high bits, index in the low bits
+        long[] keys = new long[children.size()];
+        boolean inOrder = true;
+        for(int i = 0; i < keys.length; i++) {
+            GameState child = children.get(i).state;
+            int score = score(child.getMove(), child.friendlyMoved());
+            if(killerMoves != null && child.getMove() != 0) {
+                if(child.getMove() == killerMoves[0]) {
+                    score = KILLER_SCORE;
+                } else if(child.getMove() == killerMoves[1]) {
+                    score = KILLER_SCORE - 1;
+                }
+            }
+            keys[i] = ((long) (KILLER_SCORE - score) << 32) | i;
+            inOrder &= i == 0 || keys[i - 1] < keys[i];
+        }
+        if(inOrder) {
+            return;
+        }
+        Arrays.sort(keys);
+        GameStateChild[] sorted = new GameStateChild[keys.length];
+        for(int i = 0; i < keys.length; i++) {
+            sorted[i] = children.get((int) keys[i]);
+        }
+        for(int i = 0; i < sorted.length; i++) {
+            children.set(i, sorted[i]);
+        }
+    }
+
+    /**
+     * Remembers a move that caused a cutoff.
+     *
+     * @param child The child that caused the cutoff
+     * @param ply The ply of the child
+     * @param depth The remaining depth of the node that was cut off, deeper cutoffs count for more
+     */
+    void recordCutoff(GameState child, int ply, int depth) {
+        long move = child.getMove();
+        if(move == 0) {
+            return;
+        }
+        if(ply < MAX_PLY && killers[ply][0] != move) {
+            killers[ply][1] = killers[ply][0];
+            killers[ply][0] = move;
+        }
+        int side = child.friendlyMoved() ? 0 : SIDE_ENTRIES;
+        for(int unit = 0; unit < 8; unit++) {
+            int action = action(move, unit);
+            if(action < 0) {
+                continue;
+            }
+            int entry = side + unit * ACTIONS + action;
+            history[entry] += depth * depth;
+            if(history[entry] > HISTORY_LIMIT) {
+                for(int i = 0; i < history.length; i++) {
+                    history[i] /= 2;
+                }
+            }
+        }
+    }
+
+    // the killer move in the given slot (0 or 1) at the given ply, or 0 if there is none
+    long killer(int ply, int slot) {
+        return ply < MAX_PLY ? killers[ply][slot] : 0;
+    }
+
+    // the history points of one unit's action (a byte of a move code), for ordering that unit's actions
+    int unitScore(boolean friendlyMoved, int unit, int code) {
+        return history[(friendlyMoved ? 0 : SIDE_ENTRIES) + unit * ACTIONS + action(code)];
+    }
+
+    private int score(long move, boolean friendlyMoved) {
+        int side = friendlyMoved ? 0 : SIDE_ENTRIES;
+        int score = 0;
+        for(int unit = 0; unit < 8; unit++) {
+            int action = action(move, unit);
+            if(action >= 0) {
+                score += history[side + unit * ACTIONS + action];
+            }
+        }
+        return Math.min(score, KILLER_SCORE - 2);
+    }
+
+    // the history action of a unit's byte of a move code: 0-3 for moves, 4 for any attack, -1 if the unit did nothing
+    private static int action(long move, int unit) {
+        return action(GameState.unitCode(move, unit));
+    }
+
+    private static int action(int code) {
+        return code >= GameState.ATTACK_CODE ? 4 : code - 1;
+    }
+}
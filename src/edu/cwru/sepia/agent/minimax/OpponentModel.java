@@ -0,0 +1,211 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A model of how the enemy picks its moves, so its turns can be searched as the replies it is likely to make
+ * instead of as a full min node (see MinimaxAlphaBeta's opponent option).
+ *
+ * A unit that can attack always does, like in the search. Any other unit's possible moves are put into categories
+ * by what they do to its walking distance from the nearest of our units: closer, the same, or farther. The unit is
+ * taken to pick among its legal moves in proportion to the weight of each move's category, which depends on the
+ * unit's context: how far (Chebyshev) our nearest unit is, compared with the unit's attack range. A joint move's
+ * probability is the product of its units'.
+ *
+ * The weights are fitted offline by OpponentModelFitter, from the decisions of the real opponent in played
+ * episodes. For each context it counts how often each category was chosen and how often it could have been,
+ * and a category's weight is (chosen + 1) / (available + 1), so a category that was never seen keeps a little
+ * weight. A model with no counts weighs every move the same.
+ *
+ * The model is saved in a compact binary format, like the position cache:
+ *   int MAGIC, int VERSION, int contexts, int categories, then for each context and category:
+ *   long chosen, long available
+ */
+class OpponentModel {
+
+    private static final int MAGIC = 0x4F4D444C;  // "OMDL"
+    // bump whenever the contexts or categories change, so a model fitted for the old ones is not used
+    static final int VERSION = 1;
+
+    /*
+     * MINIMAX searches every reply, as a min node.
+     * EXPECTIMAX takes the expected value over the likely replies, weighted by their probabilities.
+     * TOP_K searches only the likeliest replies, as a min node.
+     */
+    enum Mode {
+        MINIMAX,
+        EXPECTIMAX,
+        TOP_K
+    }
+
+    static final int CLOSER = 0;
+    static final int SAME = 1;
+    static final int FARTHER = 2;
+    static final int CATEGORIES = 3;
+
+    // our nearest unit is within range + NEAR (context 0), within 2 * range + 2 * NEAR (context 1), or farther
+    private static final int NEAR = 2;
+    static final int CONTEXTS = 3;
+
+    private final long[][] chosen = new long[CONTEXTS][CATEGORIES];
+    private final long[][] available = new long[CONTEXTS][CATEGORIES];
+    private final double[][] weights = new double[CONTEXTS][CATEGORIES];
+
+    OpponentModel() {
+        updateWeights();
+    }
+
+    // the context of a unit whose nearest enemy is the given Chebyshev distance away
+    static int context(int distance, int range) {
+        if(distance <= range + NEAR) {
+            return 0;
+        }
+        return distance <= 2 * (range + NEAR) ? 1 : 2;
+    }
+
+    double weight(int context, int category) {
+        return weights[context][category];
+    }
+
+    /**
+     * Counts one decision of the opponent (see GameState.observeReplies).
+     *
+     * @param context The unit's context
+     * @param categories Which categories the unit's legal moves were in
+     * @param category The category of the move it made
+     */
+    void observe(int context, boolean[] categories, int category) {
+        for(int i = 0; i < CATEGORIES; i++) {
+            if(categories[i]) {
+                available[context][i]++;
+            }
+        }
+        chosen[context][category]++;
+        updateWeights();
+    }
+
+    // the number of decisions counted
+    long decisions() {
+        long decisions = 0;
+        for(long[] counts: chosen) {
+            for(long count: counts) {
+                decisions += count;
+            }
+        }
+        return decisions;
+    }
+
+    private void updateWeights() {
+        for(int context = 0; context < CONTEXTS; context++) {
+            for(int category = 0; category < CATEGORIES; category++) {
+                weights[context][category] = (chosen[context][category] + 1.0) / (available[context][category] + 1.0);
+            }
+        }
+    }
+
+    /**
+     * The likeliest of a state's children, likeliest first (children the model finds equally likely keep the order
+     * they come in), with their probabilities scaled to add up to 1.
+     *
+     * @param state A state with the enemy to move
+     * @param children Its children
+     * @param limit The most children to keep, 0 to keep them all
+     */
+    Replies replies(GameState state, Iterator<GameStateChild> children, int limit) {
+        List<GameState> states = new ArrayList<GameState>();
+        while(children.hasNext()) {
+            states.add(children.next().state);
+        }
+        // sort by probability, highest first, then by index, like MoveOrdering.order: the probability's float bits
+        // (which sort like the floats, since they aren't negative) inverted in the high bits, the index in the low bits
+        double[] probabilities = new double[states.size()];
+        long[] keys = new long[states.size()];
+        for(int i = 0; i < keys.length; i++) {
+            probabilities[i] = state.replyProbability(states.get(i).getMove(), this);
+            keys[i] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits((float) probabilities[i])) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int kept = limit > 0 ? Math.min(limit, keys.length) : keys.length;
+        Replies replies = new Replies(kept);
+        double total = 0;
+        for(int i = 0; i < kept; i++) {
+            int index = (int) keys[i];
+            replies.states[i] = states.get(index);
+            replies.probabilities[i] = probabilities[index];
+            total += probabilities[index];
+        }
+        for(int i = 0; i < kept; i++) {
+            replies.probabilities[i] = total > 0 ? replies.probabilities[i] / total : 1.0 / kept;
+        }
+        return replies;
+    }
+
+    /**
+     * The replies kept by replies(), and their probabilities.
+     */
+    static class Replies {
+        final GameState[] states;
+        final double[] probabilities;
+
+        Replies(int size) {
+            states = new GameState[size];
+            probabilities = new double[size];
+        }
+    }
+
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(CONTEXTS);
+        out.writeInt(CATEGORIES);
+        for(int context = 0; context < CONTEXTS; context++) {
+            for(int category = 0; category < CATEGORIES; category++) {
+                out.writeLong(chosen[context][category]);
+                out.writeLong(available[context][category]);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Adds the counts of a model written by write().
+     *
+     * @return Whether the stream held a model of this format and version; if not, nothing was read
+     */
+    boolean read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != CONTEXTS || in.readInt() != CATEGORIES) {
+            return false;
+        }
+        for(int context = 0; context < CONTEXTS; context++) {
+            for(int category = 0; category < CATEGORIES; category++) {
+                chosen[context][category] += in.readLong();
+                available[context][category] += in.readLong();
+            }
+        }
+        updateWeights();
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("context,closer,same,farther\n");
+        for(int context = 0; context < CONTEXTS; context++) {
+            text.append(context);
+            for(int category = 0; category < CATEGORIES; category++) {
+                text.append(String.format(",%.3f", weights[context][category]));
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+}
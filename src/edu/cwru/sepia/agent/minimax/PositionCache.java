@@ -0,0 +1,145 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The results of the agent's root searches, kept across episodes so a position that has been searched
+ * before is played from the cache instead of being searched again. The same maps are played many times,
+ * and the opening positions in particular repeat exactly.
+ *
+ * Entries are keyed by GameState.getGameKey(). When the cache is full, the entries from the latest turns
+ * are the first to go, since early game positions are the ones most likely to come up again. The keys are also
+ * kept in a set per turn, so the latest entry is found without looking through them all.
+ *
+ * The cache is written in a compact binary format:
+ *   int MAGIC, int VERSION, int entry count, then for each entry:
+ *   long key, short turn, byte depth, double value, long move
+ * A file with a different magic number or version is ignored, so changing the evaluation or the move
+ * codes only needs VERSION to be bumped.
+ */
+class PositionCache {
+
+    private static final int MAGIC = 0x4D4D4142;  // "MMAB"
+    // bump whenever GameState's utility, move codes or game keys change, so stale results are not reused
+    static final int VERSION = 3;
+
+    /**
+     * One root search's result.
+     */
+    static class Entry {
+        final int turn;         // the turn of the episode the position came up on
+        final int depth;        // the depth it was searched to
+        final double value;
+        final long move;        // the move code of the best child
+
+        Entry(int turn, int depth, double value, long move) {
+            this.turn = turn;
+            this.depth = depth;
+            this.value = value;
+            this.move = move;
+        }
+    }
+
+    private final int capacity;
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    // the keys of the entries from each turn, indexed by turn, and the latest turn that may have any
+    private final List<Set<Long>> keysByTurn = new ArrayList<Set<Long>>();
+    private int latestTurn;
+
+    /**
+     * @param capacity The most entries to keep
+     */
+    PositionCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    Entry get(long key) {
+        return entries.get(key);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remembers a search result, unless the position is already cached from a search at least as deep.
+     */
+    void record(long key, int turn, int depth, double value, long move) {
+        Entry old = entries.get(key);
+        if(old != null && old.depth >= depth) {
+            return;
+        }
+        Entry entry = new Entry(old != null ? Math.min(old.turn, turn) : turn, depth, value, move);
+        if(old != null) {
+            keysByTurn.get(old.turn).remove(key);
+        }
+        entries.put(key, entry);
+        while(keysByTurn.size() <= entry.turn) {
+            keysByTurn.add(new LinkedHashSet<Long>());
+        }
+        keysByTurn.get(entry.turn).add(key);
+        latestTurn = Math.max(latestTurn, entry.turn);
+        while(entries.size() > capacity) {
+            evictLatest();
+        }
+    }
+
+    // removes an entry from the latest turn
+    private void evictLatest() {
+        while(keysByTurn.get(latestTurn).isEmpty()) {
+            latestTurn--;
+        }
+        Iterator<Long> keys = keysByTurn.get(latestTurn).iterator();
+        entries.remove(keys.next());
+        keys.remove();
+    }
+
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for(Map.Entry<Long, Entry> entry: entries.entrySet()) {
+            Entry value = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeShort(Math.min(value.turn, Short.MAX_VALUE));
+            out.writeByte(value.depth);
+            out.writeDouble(value.value);
+            out.writeLong(value.move);
+        }
+        out.flush();
+    }
+
+    /**
+     * Adds the entries of a cache written by write(). Nothing is read from a stream of another format or version.
+     *
+     * @return The number of entries read
+     */
+    int read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return 0;
+        }
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            long key = in.readLong();
+            int turn = in.readShort();
+            int depth = in.readUnsignedByte();
+            double value = in.readDouble();
+            long move = in.readLong();
+            record(key, turn, depth, value, move);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,53 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * A triangular table of principal variations, one per ply of the current path of the search.
+ *
+ * The line of the node at ply p is kept in row p: the move code of its best child so far, followed by that
+ * child's own line, which the child left in row p+1 when its search returned. A node's row is cleared
+ * when its search starts, so nodes answered from the transposition table or cut off end up with a short line.
+ */
+class PrincipalVariation {
+
+    private static final int MAX_PLY = MoveOrdering.MAX_PLY;
+    private static final long[] EMPTY = new long[0];
+
+    private final long[][] lines = new long[MAX_PLY + 1][MAX_PLY];
+    private final int[] lengths = new int[MAX_PLY + 1];
+
+    // forgets the line of the node at the given ply, when its search starts
+    void clear(int ply) {
+        if(ply <= MAX_PLY) {
+            lengths[ply] = 0;
+        }
+    }
+
+    // the node at ply found a new best child, produced by the given move, whose search just returned
+    void update(int ply, long move) {
+        if(ply >= MAX_PLY) {
+            return;
+        }
+        long[] line = lines[ply];
+        line[0] = move;
+        int childLength = Math.min(lengths[ply + 1], MAX_PLY - 1);
+        System.arraycopy(lines[ply + 1], 0, line, 1, childLength);
+        lengths[ply] = childLength + 1;
+    }
+
+    // replaces the line of the node at ply, with one found by another thread (see SplitPoint)
+    void set(int ply, long[] line) {
+        if(ply >= MAX_PLY) {
+            return;
+        }
+        int length = Math.min(line.length, MAX_PLY);
+        System.arraycopy(line, 0, lines[ply], 0, length);
+        lengths[ply] = length;
+    }
+
+    // a copy of the line of the node at ply
+    long[] line(int ply) {
+        return ply < MAX_PLY ? Arrays.copyOf(lines[ply], lengths[ply]) : EMPTY;
+    }
+}
@@ -0,0 +1,160 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Counters describing one move's search: how many nodes were expanded and evaluated,
+ * how often and how early alpha-beta cut off, and how long each depth took.
+ *
+ * Every SearchWorker counts into its own instance with plain field increments, so counting costs
+ * next to nothing even in a parallel search. The agent adds the workers' counters up after each move.
+ */
+public class SearchStatistics {
+
+    public static final String CSV_HEADER = "turn,depth,millis,nodes,leaves,nodesPerSecond,betaCutoffs,alphaCutoffs,"
+            + "firstMoveCutoffRate,branchingFactor,transpositionHits,researches,cacheHits,reroots,quiescenceNodes,depthMillis";
+
+    public int turn;
+    public int depth;               // the deepest completed search
+    public long millis;             // the time for the whole move
+
+    public long nodes;              // nodes whose children were generated
+    public long leaves;             // nodes evaluated with getUtility
+    public long children;           // children generated, summed over all nodes
+    public long betaCutoffs;        // cutoffs at max nodes
+    public long alphaCutoffs;       // cutoffs at min nodes
+    public long firstMoveCutoffs;   // cutoffs caused by the first child searched
+    public long transpositionHits;  // nodes answered from the transposition table
+    public long researches;         // null window and aspiration searches that had to be repeated with a wider window
+    public long cacheHits;          // moves played from the position cache without a search
+    public long reroots;            // moves whose root was found in the last move's search tree
+    public long quiescenceNodes;    // nodes past the nominal depth whose tactical children were searched
+
+    // the time taken to complete each depth, in order
+    public final List<Long> depthMillis = new ArrayList<Long>();
+
+    public void reset() {
+        turn = 0;
+        depth = 0;
+        millis = 0;
+        nodes = 0;
+        leaves = 0;
+        children = 0;
+        betaCutoffs = 0;
+        alphaCutoffs = 0;
+        firstMoveCutoffs = 0;
+        transpositionHits = 0;
+        researches = 0;
+        cacheHits = 0;
+        reroots = 0;
+        quiescenceNodes = 0;
+        depthMillis.clear();
+    }
+
+    // adds another worker's counters to these
+    public void add(SearchStatistics other) {
+        nodes += other.nodes;
+        leaves += other.leaves;
+        children += other.children;
+        betaCutoffs += other.betaCutoffs;
+        alphaCutoffs += other.alphaCutoffs;
+        firstMoveCutoffs += other.firstMoveCutoffs;
+        transpositionHits += other.transpositionHits;
+        researches += other.researches;
+        cacheHits += other.cacheHits;
+        reroots += other.reroots;
+        quiescenceNodes += other.quiescenceNodes;
+    }
+
+    // writes every counter, for read() (see SearchTrace)
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(turn);
+        out.writeInt(depth);
+        out.writeLong(millis);
+        out.writeLong(nodes);
+        out.writeLong(leaves);
+        out.writeLong(children);
+        out.writeLong(betaCutoffs);
+        out.writeLong(alphaCutoffs);
+        out.writeLong(firstMoveCutoffs);
+        out.writeLong(transpositionHits);
+        out.writeLong(researches);
+        out.writeLong(cacheHits);
+        out.writeLong(reroots);
+        out.writeLong(quiescenceNodes);
+        out.writeInt(depthMillis.size());
+        for(Long time: depthMillis) {
+            out.writeLong(time);
+        }
+    }
+
+    public static SearchStatistics read(DataInput in) throws IOException {
+        SearchStatistics statistics = new SearchStatistics();
+        statistics.turn = in.readInt();
+        statistics.depth = in.readInt();
+        statistics.millis = in.readLong();
+        statistics.nodes = in.readLong();
+        statistics.leaves = in.readLong();
+        statistics.children = in.readLong();
+        statistics.betaCutoffs = in.readLong();
+        statistics.alphaCutoffs = in.readLong();
+        statistics.firstMoveCutoffs = in.readLong();
+        statistics.transpositionHits = in.readLong();
+        statistics.researches = in.readLong();
+        statistics.cacheHits = in.readLong();
+        statistics.reroots = in.readLong();
+        statistics.quiescenceNodes = in.readLong();
+        for(int i = in.readInt(); i > 0; i--) {
+            statistics.depthMillis.add(in.readLong());
+        }
+        return statistics;
+    }
+
+    public double getNodesPerSecond() {
+        return millis > 0 ? (nodes + leaves) * 1000.0 / millis : 0;
+    }
+
+    // the fraction of cutoffs that happened on the first child, a measure of move ordering quality
+    public double getFirstMoveCutoffRate() {
+        long cutoffs = betaCutoffs + alphaCutoffs;
+        return cutoffs > 0 ? (double) firstMoveCutoffs / cutoffs : 0;
+    }
+
+    public double getBranchingFactor() {
+        return nodes > 0 ? (double) children / nodes : 0;
+    }
+
+    public String toCsv() {
+        StringBuilder depths = new StringBuilder();
+        for(Long time: depthMillis) {
+            depths.append(depths.length() > 0 ? ";" : "").append(time);
+        }
+        return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.0f,%d,%d,%.3f,%.2f,%d,%d,%d,%d,%d,%s", turn, depth, millis, nodes, leaves,
+                getNodesPerSecond(), betaCutoffs, alphaCutoffs, getFirstMoveCutoffRate(), getBranchingFactor(),
+                transpositionHits, researches, cacheHits, reroots, quiescenceNodes, depths);
+    }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"turn\":%d,\"depth\":%d,\"millis\":%d,\"nodes\":%d,\"leaves\":%d,\"nodesPerSecond\":%.0f,"
+                + "\"betaCutoffs\":%d,\"alphaCutoffs\":%d,\"firstMoveCutoffRate\":%.3f,\"branchingFactor\":%.2f,"
+                + "\"transpositionHits\":%d,\"researches\":%d,\"cacheHits\":%d,\"reroots\":%d,\"quiescenceNodes\":%d,"
+                + "\"depthMillis\":%s}",
+                turn, depth, millis, nodes, leaves, getNodesPerSecond(), betaCutoffs, alphaCutoffs,
+                getFirstMoveCutoffRate(), getBranchingFactor(), transpositionHits, researches, cacheHits, reroots,
+                quiescenceNodes, depthMillis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "turn %d: depth %d in %d ms, %d nodes + %d leaves (%.0f/s), %d beta + %d alpha cutoffs "
+                + "(%.0f%% on the first move), branching factor %.2f, %d transposition hits, %d re-searches, %d from the cache, "
+                + "%d re-rooted, %d quiescence nodes, ms per depth %s", turn, depth, millis, nodes, leaves, getNodesPerSecond(), betaCutoffs, alphaCutoffs,
+                100 * getFirstMoveCutoffRate(), getBranchingFactor(), transpositionHits, researches, cacheHits, reroots,
+                quiescenceNodes, depthMillis);
+    }
+}
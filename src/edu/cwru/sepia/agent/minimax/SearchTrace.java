@@ -0,0 +1,312 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A log of the agent's decisions, to find out afterwards why it made a move without running SEPIA again
+ * (see TraceReplay). For every turn it holds the root state, the value each root child got, the move played,
+ * the principal variation and the search statistics.
+ *
+ * Records are only ever appended. They are put together in memory and collected in a direct buffer, which is
+ * written to the file's channel when it fills up and when the trace is closed at the end of an episode, so
+ * tracing a turn costs a few hundred bytes of copying and hardly ever a system call. A closed trace opens the
+ * file again for its next record. Every write of an agent's records starts with a session record of its arguments,
+ * so a replay can search the way it did. Several agents can trace to the same file, like BatchRunner's parallel
+ * episodes: the header and each write are made under a lock on the file, so only the first agent writes the
+ * header and one agent's records never end up in the middle of another's. The session's random id tells apart
+ * which agent the records after it belong to, even if two agents have the same arguments.
+ *
+ * The trace is written in a compact binary format, like the position cache:
+ *   int MAGIC, int VERSION at the start of the file, then records of int length, byte type and then
+ *   for a SESSION: long id, int argument count, the arguments as UTF
+ *   for a TURN: the root (see GameState.write), int child count, then for each child long move and double value,
+ *   long move played (0 if there was none), double value, int line length, the line's long moves,
+ *   the statistics (see SearchStatistics.write)
+ * A record's length covers its type and everything after it. A record cut short by a crash ends the trace, with a
+ * warning; anything else that isn't a record is reported as an error.
+ */
+class SearchTrace implements Closeable {
+
+    private static final int MAGIC = 0x53545243;  // "STRC"
+    // bump whenever the records or the move codes change
+    static final int VERSION = 2;
+
+    static final byte SESSION = 1;
+    static final byte TURN = 2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // held while writing to any trace, since a FileLock keeps other processes out but not this one's other agents
+    private static final Object WRITE_LOCK = new Object();
+
+    private final File file;
+    private FileChannel channel;    // null while the trace is closed
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // the record being written, since its length goes first
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    // the session record, length and type included, which starts every write
+    private final byte[] session;
+
+    /**
+     * Opens a trace file to append to, creating it if there is none, and starts a session.
+     *
+     * @param args The arguments of the agent that is tracing
+     */
+    SearchTrace(File file, String[] args) throws IOException {
+        this.file = file;
+        open();
+        recordOut.writeLong(new Random().nextLong());
+        recordOut.writeInt(args.length);
+        for(String arg: args) {
+            recordOut.writeUTF(arg);
+        }
+        recordOut.flush();
+        ByteBuffer sessionRecord = ByteBuffer.allocate(4 + 1 + record.size());
+        sessionRecord.putInt(1 + record.size()).put(SESSION).put(record.toByteArray());
+        session = sessionRecord.array();
+        record.reset();
+    }
+
+    /**
+     * Records one turn's decision.
+     *
+     * @param root The state the turn was searched from
+     * @param moves The move code of each root child that was searched
+     * @param values The value each of them got in the last completed search
+     * @param move The move code played, 0 if there was none
+     * @param value The root's value
+     * @param line The principal variation, starting with the move played
+     * @param statistics The statistics of the turn's search
+     */
+    void recordTurn(GameState root, long[] moves, double[] values, long move, double value, long[] line,
+                    SearchStatistics statistics) throws IOException {
+        if(channel == null) {
+            open();
+        }
+        root.write(recordOut);
+        recordOut.writeInt(moves.length);
+        for(int i = 0; i < moves.length; i++) {
+            recordOut.writeLong(moves[i]);
+            recordOut.writeDouble(values[i]);
+        }
+        recordOut.writeLong(move);
+        recordOut.writeDouble(value);
+        recordOut.writeInt(line.length);
+        for(long lineMove: line) {
+            recordOut.writeLong(lineMove);
+        }
+        statistics.write(recordOut);
+        append(TURN);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        synchronized(WRITE_LOCK) {
+            FileLock lock = channel.lock();
+            try {
+                if(channel.size() == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(8);
+                    header.putInt(MAGIC).putInt(VERSION);
+                    header.flip();
+                    write(header);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void append(byte type) throws IOException {
+        recordOut.flush();
+        int length = record.size() + 1;
+        if(buffer.position() > 0 && buffer.remaining() < 4 + length) {
+            flush();
+        }
+        if(buffer.position() > 0) {
+            buffer.putInt(length).put(type).put(record.toByteArray());
+        } else if(session.length + 4 + length <= buffer.capacity()) {
+            buffer.put(session).putInt(length).put(type).put(record.toByteArray());
+        } else {
+            // bigger than the buffer, so it goes straight to the file
+            ByteBuffer large = ByteBuffer.allocate(session.length + 4 + length);
+            large.put(session).putInt(length).put(type).put(record.toByteArray());
+            large.flip();
+            writeLocked(large);
+        }
+        record.reset();
+    }
+
+    // writes out what is in the buffer
+    private void flush() throws IOException {
+        buffer.flip();
+        writeLocked(buffer);
+        buffer.clear();
+    }
+
+    // appends whole records, holding the lock so no other agent's write lands in between
+    private void writeLocked(ByteBuffer data) throws IOException {
+        synchronized(WRITE_LOCK) {
+            FileLock lock = channel.lock();
+            try {
+                write(data);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while(data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    // writes out the records so far and closes the file until the next record
+    @Override
+    public void close() throws IOException {
+        if(channel == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * One turn of a trace, and the arguments of the agent that played it.
+     */
+    static class Turn {
+        String[] args;      // the same array for every turn of a session
+        GameState root;
+        long[] moves;
+        double[] values;
+        long move;
+        double value;
+        long[] line;
+        SearchStatistics statistics;
+    }
+
+    /**
+     * Reads the turns of a trace in the order they were played.
+     */
+    static class Reader implements Closeable {
+        private final File file;
+        private final DataInputStream in;
+        private final long length;
+        // how far into the file the next record starts
+        private long offset = 8;
+        private String[] args = new String[0];
+        // each session's arguments by its id, so all of a session's turns share the same array
+        private final Map<Long, String[]> sessions = new HashMap<Long, String[]>();
+
+        /**
+         * @throws IOException If the file can't be read or is not a trace of this version
+         */
+        Reader(File file) throws IOException {
+            this.file = file;
+            length = file.length();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException(file + " is not a search trace of version " + VERSION);
+            }
+        }
+
+        /**
+         * @return The next turn, or null at the end of the trace
+         * @throws IOException If the file can't be read or holds something other than records
+         */
+        Turn next() throws IOException {
+            while(true) {
+                if(offset == length) {
+                    return null;
+                }
+                int recordLength;
+                try {
+                    recordLength = in.readInt();
+                } catch(EOFException e) {
+                    return cutShort();
+                }
+                if(recordLength == MAGIC) {
+                    throw new IOException(file + " has a second header at " + offset
+                            + ", so two traces were written to it at once");
+                }
+                if(recordLength < 1) {
+                    throw new IOException(file + " has a record of length " + recordLength + " at " + offset);
+                }
+                if(recordLength > length - offset - 4) {
+                    return cutShort();
+                }
+                byte[] record = new byte[recordLength];
+                in.readFully(record);
+                if(record[0] != SESSION && record[0] != TURN) {
+                    throw new IOException(file + " has a record of unknown type " + record[0] + " at " + offset);
+                }
+                offset += 4 + recordLength;
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+                if(record[0] == SESSION) {
+                    long id = recordIn.readLong();
+                    args = sessions.get(id);
+                    if(args == null) {
+                        args = new String[recordIn.readInt()];
+                        for(int i = 0; i < args.length; i++) {
+                            args[i] = recordIn.readUTF();
+                        }
+                        sessions.put(id, args);
+                    }
+                } else if(record[0] == TURN) {
+                    Turn turn = new Turn();
+                    turn.args = args;
+                    turn.root = GameState.read(recordIn);
+                    turn.moves = new long[recordIn.readInt()];
+                    turn.values = new double[turn.moves.length];
+                    for(int i = 0; i < turn.moves.length; i++) {
+                        turn.moves[i] = recordIn.readLong();
+                        turn.values[i] = recordIn.readDouble();
+                    }
+                    turn.move = recordIn.readLong();
+                    turn.value = recordIn.readDouble();
+                    turn.line = new long[recordIn.readInt()];
+                    for(int i = 0; i < turn.line.length; i++) {
+                        turn.line[i] = recordIn.readLong();
+                    }
+                    turn.statistics = SearchStatistics.read(recordIn);
+                    return turn;
+                }
+            }
+        }
+
+        // the end of a trace whose last record a crash cut short
+        private Turn cutShort() {
+            System.err.println("Ignoring the last record of " + file + ", which is cut short at " + offset);
+            offset = length;
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The recursive part of the alpha beta search.
+ *
+ * Everything a search thread needs for itself lives here, so a parallel search gives each of its
+ * threads its own SearchWorker (see MinimaxAlphaBeta.getWorker()). Everything shared between threads,
+ * like the deadline and the transposition table, belongs to the agent.
+ */
+class SearchWorker {
+
+    // below this remaining depth a node's children are searched serially, since forking costs more than it saves
+    static final int MIN_SPLIT_DEPTH = 3;
+
+    private final MinimaxAlphaBeta agent;
+    private final TranspositionTable transpositionTable;
+    private final OpponentModel opponentModel;
+    private final int quiescenceDepth;
+    private final TranspositionTable.Entry entry = new TranspositionTable.Entry();
+    // this thread's share of the current move's counters
+    final SearchStatistics statistics = new SearchStatistics();
+    // killer moves are per thread, the history table is the agent's
+    final MoveOrdering moveOrdering;
+    final PrincipalVariation principalVariation = new PrincipalVariation();
+
+    SearchWorker(MinimaxAlphaBeta agent) {
+        this.agent = agent;
+        this.transpositionTable = agent.getTranspositionTable();
+        this.opponentModel = agent.getOpponentModel();
+        this.quiescenceDepth = agent.getQuiescenceDepth();
+        this.moveOrdering = new MoveOrdering(agent.getHistory());
+    }
+
+    /*
+     * Returns the minimax value of the state searched to the given depth.
+     * If the deadline passes, the agent's time is up and the returned value is meaningless.
+     *
+     * Positions already searched deeply enough are answered from the transposition table, except on the
+     * principal variation (a node with a full window).
+     * Otherwise the last turn's principal variation and the best move stored for the position are searched first,
+     * then the killer moves, then the rest as GameState.children generates them, so a cutoff stops the generation
+     * of the remaining children. In a parallel search, nodes with enough depth left generate all of their
+     * children, ordered by MoveOrdering, and search them Young Brothers Wait style.
+     *
+     * The first child gets the full window. The others are searched with a null window first (principal
+     * variation search), which only tells whether they beat the best so far and cuts off much sooner;
+     * the few that do are searched again with the full window to get their value.
+     * The line of best moves found is left in principalVariation's row for ply.
+     *
+     * Depth counts turns, so in a factored search the sub-plies in the middle of a turn don't use any up, and
+     * leaves are always at the end of a turn.
+     *
+     * With an opponent model, the enemy's turns are searched over the replies it expects (see OpponentModel):
+     * the likeliest ones as a min node, or all or the likeliest of them as a chance node, whose value is the
+     * expected value of its children.
+     *
+     * With a quiescence depth, a state at depth 0 is searched on by quiescenceValue instead of being a leaf.
+     *
+     * A state where the game is over is a leaf at any depth. Its value is moved towards 0 by its ply, so the
+     * search prefers the quickest win and the slowest loss; the transposition table keeps such values relative
+     * to the node they belong to, since the same position can be reached at different plies.
+     */
+    double alphaBetaValue(GameState state, int ply, int depth, double alpha, double beta) {
+        principalVariation.clear(ply);
+        if(agent.isTimeUp()) {
+            return 0;
+        }
+        if(state.isTerminal()) {
+            statistics.leaves++;
+            return byDistance(state.getUtility(), ply);
+        }
+        if(depth == 0) {
+            if(quiescenceDepth > 0) {
+                return quiescenceValue(state, ply, quiescenceDepth, alpha, beta);
+            }
+            statistics.leaves++;
+            return state.getUtility();
+        }
+
+        long hash = state.getHash();
+        long hashMove = 0;
+        if(transpositionTable != null && transpositionTable.probe(hash, entry)) {
+            // only null window searches stop at the table, so the principal variation is searched out in full
+            if(entry.depth >= depth && Math.nextUp(alpha) >= beta) {
+                double value = byDistance(entry.value, ply);
+                if(entry.flag == TranspositionTable.EXACT
+                        || (entry.flag == TranspositionTable.LOWER_BOUND && value >= beta)
+                        || (entry.flag == TranspositionTable.UPPER_BOUND && value <= alpha)) {
+                    statistics.transpositionHits++;
+                    return value;
+                }
+            }
+            hashMove = entry.bestMove;
+        }
+
+        long pvMove = agent.getPrincipalVariationMove(ply, state);
+        List<GameStateChild> childList = null;
+        Iterator<GameStateChild> children;
+        if(agent.isParallel() && depth >= MIN_SPLIT_DEPTH && (state.myTurnNext || opponentModel == null)) {
+            childList = agent.orderChildrenWithHeuristics(state.generateChildren());
+            moveOrdering.order(childList, ply + 1);
+            moveToFront(childList, hashMove);
+            moveToFront(childList, pvMove);
+            children = childList.iterator();
+        } else {
+            children = state.children(moveOrdering, pvMove, hashMove,
+                    moveOrdering.killer(ply + 1, 0), moveOrdering.killer(ply + 1, 1));
+        }
+        if(!children.hasNext()) {
+            statistics.leaves++;
+            return state.getUtility();
+        }
+        statistics.nodes++;
+
+        double alphaOriginal = alpha;
+        double betaOriginal = beta;
+        long bestMove = 0;
+        double v;
+        if(childList != null && childList.size() > 1) {
+            statistics.children += childList.size();
+            SplitPoint split = new SplitPoint(agent, childList, state.myTurnNext, ply + 1, depth - 1, alpha, beta, null);
+            split.search();
+            v = split.getBestValue();
+            bestMove = childList.get(split.getBestIndex()).state.getMove();
+            principalVariation.set(ply, split.getBestLine());
+            if(split.isCutoff()) {
+                cutoff(state.myTurnNext, childList.get(split.getBestIndex()).state, split.getBestIndex(), ply, depth);
+            }
+        } else if(state.myTurnNext) {
+            v = Double.NEGATIVE_INFINITY;
+            for(int i = 0; children.hasNext(); i++) {
+                GameState child = children.next().state;
+                statistics.children++;
+                int childDepth = child.midTurn() ? depth : depth - 1;
+                double value;
+                if(i == 0) {
+                    value = alphaBetaValue(child, ply + 1, childDepth, alpha, beta);
+                } else {
+                    value = alphaBetaValue(child, ply + 1, childDepth, alpha, Math.nextUp(alpha));
+                    if(value > alpha && value < beta) {
+                        statistics.researches++;
+                        value = alphaBetaValue(child, ply + 1, childDepth, alpha, beta);
+                    }
+                }
+                if(value > v) {
+                    v = value;
+                    bestMove = child.getMove();
+                    if(value > alpha) {
+                        principalVariation.update(ply, bestMove);
+                    }
+                }
+                if(beta <= v) {
+                    cutoff(true, child, i, ply, depth);
+                    break; // beta cutoff
+                }
+                alpha = Math.max(alpha, v);
+            }
+        } else if(opponentModel != null) {
+            // the enemy's turn, searched over the replies the opponent model expects instead of all of them
+            OpponentModel.Replies replies = opponentModel.replies(state, children, agent.getReplyLimit());
+            statistics.children += replies.states.length;
+            bestMove = replies.states[0].getMove();
+            if(agent.isExpectimax()) {
+                // the value is an average, so the children can't be cut off by this node's window
+                alphaOriginal = Double.NEGATIVE_INFINITY;
+                betaOriginal = Double.POSITIVE_INFINITY;
+                v = 0;
+                for(int i = 0; i < replies.states.length; i++) {
+                    GameState child = replies.states[i];
+                    int childDepth = child.midTurn() ? depth : depth - 1;
+                    v += replies.probabilities[i] * alphaBetaValue(child, ply + 1, childDepth,
+                            Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+                    if(i == 0) {
+                        // the likeliest reply is the line expected
+                        principalVariation.update(ply, bestMove);
+                    }
+                }
+            } else {
+                v = Double.POSITIVE_INFINITY;
+                for(int i = 0; i < replies.states.length; i++) {
+                    GameState child = replies.states[i];
+                    int childDepth = child.midTurn() ? depth : depth - 1;
+                    double value = alphaBetaValue(child, ply + 1, childDepth, alpha, beta);
+                    if(value < v) {
+                        v = value;
+                        bestMove = child.getMove();
+                        if(value < beta) {
+                            principalVariation.update(ply, bestMove);
+                        }
+                    }
+                    if(v <= alpha) {
+                        cutoff(false, child, i, ply, depth);
+                        break; // alpha cutoff
+                    }
+                    beta = Math.min(beta, v);
+                }
+            }
+        } else {
+            v = Double.POSITIVE_INFINITY;
+            for(int i = 0; children.hasNext(); i++) {
+                GameState child = children.next().state;
+                statistics.children++;
+                int childDepth = child.midTurn() ? depth : depth - 1;
+                double value;
+                if(i == 0) {
+                    value = alphaBetaValue(child, ply + 1, childDepth, alpha, beta);
+                } else {
+                    value = alphaBetaValue(child, ply + 1, childDepth, Math.nextAfter(beta, Double.NEGATIVE_INFINITY), beta);
+                    if(value < beta && value > alpha) {
+                        statistics.researches++;
+                        value = alphaBetaValue(child, ply + 1, childDepth, alpha, beta);
+                    }
+                }
+                if(value < v) {
+                    v = value;
+                    bestMove = child.getMove();
+                    if(value < beta) {
+                        principalVariation.update(ply, bestMove);
+                    }
+                }
+                if(v <= alpha) {
+                    cutoff(false, child, i, ply, depth);
+                    break; // alpha cutoff
+                }
+                beta = Math.min(beta, v);
+            }
+        }
+
+        if(transpositionTable != null && !agent.isTimeUp()) {
+            byte flag = TranspositionTable.EXACT;
+            if(v <= alphaOriginal) {
+                flag = TranspositionTable.UPPER_BOUND;
+            } else if(v >= betaOriginal) {
+                flag = TranspositionTable.LOWER_BOUND;
+            }
+            transpositionTable.store(hash, depth, byDistance(v, -ply), flag, bestMove);
+        }
+        return v;
+    }
+
+    /*
+     * Searches on past the nominal depth, so that a trade of attacks that is under way, or a unit about to step into
+     * range, is not cut off half done. Only the tactical children are searched (see GameState.tacticalChildren), for
+     * at most budget more turns, and the side to move may stand pat: take the state's own utility instead of any of
+     * them, since it is never forced to make a tactical move. A quiet state is a leaf.
+     * In a factored search a side only stands pat at the start of its turn: half a turn is not a position to be
+     * scored, so a turn under way is played out, with the units that have nothing tactical to do staying put.
+     * Neither the transposition table nor the principal variation go past the nominal depth.
+     */
+    private double quiescenceValue(GameState state, int ply, int budget, double alpha, double beta) {
+        principalVariation.clear(ply);
+        if(agent.isTimeUp()) {
+            return 0;
+        }
+        if(state.isTerminal()) {
+            statistics.leaves++;
+            return byDistance(state.getUtility(), ply);
+        }
+        boolean midTurn = state.midTurn();
+        double standPat = midTurn ? Double.NaN : state.getUtility();
+        if(!midTurn && (budget == 0 || (state.myTurnNext ? standPat >= beta : standPat <= alpha))) {
+            statistics.leaves++;
+            return standPat;
+        }
+        Iterator<GameStateChild> children = state.tacticalChildren(moveOrdering);
+        if(!children.hasNext()) {
+            statistics.leaves++;
+            return midTurn ? state.getUtility() : standPat;
+        }
+        statistics.nodes++;
+        statistics.quiescenceNodes++;
+
+        double v = midTurn ? (state.myTurnNext ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY) : standPat;
+        while(children.hasNext()) {
+            GameState child = children.next().state;
+            statistics.children++;
+            double value = quiescenceValue(child, ply + 1, child.midTurn() ? budget : budget - 1, alpha, beta);
+            if(state.myTurnNext) {
+                v = Math.max(v, value);
+                if(beta <= v) {
+                    statistics.betaCutoffs++;
+                    break;
+                }
+                alpha = Math.max(alpha, v);
+            } else {
+                v = Math.min(v, value);
+                if(v <= alpha) {
+                    statistics.alphaCutoffs++;
+                    break;
+                }
+                beta = Math.min(beta, v);
+            }
+        }
+        return v;
+    }
+
+    // a won or lost value, moved the given number of plies towards 0 (away from it if negative); other values as they are
+    private static double byDistance(double value, int plies) {
+        if(value > GameState.WIN_THRESHOLD) {
+            return value - plies;
+        }
+        if(value < -GameState.WIN_THRESHOLD) {
+            return value + plies;
+        }
+        return value;
+    }
+
+    // records a cutoff caused by the child searched at the given index
+    private void cutoff(boolean maxNode, GameState child, int index, int ply, int depth) {
+        moveOrdering.recordCutoff(child, ply + 1, depth);
+        if(maxNode) {
+            statistics.betaCutoffs++;
+        } else {
+            statistics.alphaCutoffs++;
+        }
+        if(index == 0) {
+            statistics.firstMoveCutoffs++;
+        }
+    }
+
+    // moves the child produced by the given move code to the front of the list, keeping the order of the others
+    private static void moveToFront(List<GameStateChild> children, long move) {
+        if(move == 0) {
+            return;
+        }
+        for(int i = 1; i < children.size(); i++) {
+            if(children.get(i).state.getMove() == move) {
+                children.add(0, children.remove(i));
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Searches the children of one node, Young Brothers Wait style.
+ *
+ * The eldest brother (the first child, which the move ordering thinks is best) is searched on its own first,
+ * which usually narrows the alpha-beta window a lot. Only then are the younger brothers searched, as
+ * ForkJoin tasks when the search is parallel. The window is shared between the brothers: every result
+ * narrows it, a brother that starts later searches with the narrowest window so far, and once the
+ * window closes (a cutoff) the brothers that haven't started yet are skipped.
+ *
+ * Younger brothers are searched principal variation style: with a null window first, and again with the
+ * full window only if that shows they beat the best so far.
+ */
+class SplitPoint {
+
+    private final MinimaxAlphaBeta agent;
+    private final List<GameStateChild> children;
+    private final boolean maximizing;
+    private final int ply;          // the ply of the children
+    private final int depth;        // the depth to search each child that ends a turn to
+    private final double[] scores;  // if not null, receives the value of each child searched
+
+    // guarded by this
+    private double alpha;
+    private double beta;
+    private double bestValue;
+    private int bestIndex;
+    private long[] bestLine;        // the best child's move, then its principal variation
+
+    /**
+     * @param agent The agent running the search
+     * @param children The children to search, best first
+     * @param maximizing Whether the node these are the children of is a max node
+     * @param ply The ply of the children, 1 for the root's
+     * @param depth The remaining depth under each child, one more under those in the middle of a factored turn
+     * @param alpha The alpha-beta window of the node
+     * @param beta The alpha-beta window of the node
+     * @param scores If not null, filled in with each child's value (children skipped after a cutoff are left alone)
+     */
+    SplitPoint(MinimaxAlphaBeta agent, List<GameStateChild> children, boolean maximizing, int ply, int depth,
+               double alpha, double beta, double[] scores) {
+        this.agent = agent;
+        this.children = children;
+        this.maximizing = maximizing;
+        this.ply = ply;
+        this.depth = depth;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.scores = scores;
+        bestValue = maximizing ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        bestIndex = 0;
+        bestLine = new long[0];
+    }
+
+    // searches the children, in parallel if the agent has a pool and there is enough depth left
+    void search() {
+        searchChild(0);
+        if(!agent.isParallel() || depth < SearchWorker.MIN_SPLIT_DEPTH - 1) {
+            for(int i = 1; i < children.size() && !isCutoff() && !agent.isTimeUp(); i++) {
+                searchChild(i);
+            }
+            return;
+        }
+        List<YoungerBrother> brothers = new ArrayList<YoungerBrother>();
+        for(int i = 1; i < children.size(); i++) {
+            brothers.add(new YoungerBrother(i));
+        }
+        if(ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(brothers);
+        } else {
+            final List<YoungerBrother> tasks = brothers;
+            agent.getPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+    private void searchChild(int index) {
+        double a;
+        double b;
+        synchronized(this) {
+            if(alpha >= beta) {
+                return;
+            }
+            a = alpha;
+            b = beta;
+        }
+        SearchWorker worker = agent.getWorker();
+        GameState child = children.get(index).state;
+        int childDepth = child.midTurn() ? depth + 1 : depth;
+        double value;
+        if(index == 0) {
+            value = worker.alphaBetaValue(child, ply, childDepth, a, b);
+        } else {
+            if(maximizing) {
+                value = worker.alphaBetaValue(child, ply, childDepth, a, Math.nextUp(a));
+            } else {
+                value = worker.alphaBetaValue(child, ply, childDepth, Math.nextAfter(b, Double.NEGATIVE_INFINITY), b);
+            }
+            if(value > a && value < b) {
+                worker.statistics.researches++;
+                synchronized(this) {
+                    a = alpha;
+                    b = beta;
+                }
+                value = worker.alphaBetaValue(child, ply, childDepth, a, b);
+            }
+        }
+        if(!agent.isTimeUp()) {
+            report(index, value, worker.principalVariation.line(ply));
+        }
+    }
+
+    private synchronized void report(int index, double value, long[] line) {
+        if(scores != null) {
+            scores[index] = value;
+        }
+        if(maximizing ? value > bestValue : value < bestValue) {
+            bestValue = value;
+            bestIndex = index;
+            bestLine = new long[line.length + 1];
+            bestLine[0] = children.get(index).state.getMove();
+            System.arraycopy(line, 0, bestLine, 1, line.length);
+        }
+        if(maximizing) {
+            alpha = Math.max(alpha, value);
+        } else {
+            beta = Math.min(beta, value);
+        }
+    }
+
+    synchronized boolean isCutoff() {
+        return alpha >= beta;
+    }
+
+    synchronized double getBestValue() {
+        return bestValue;
+    }
+
+    synchronized int getBestIndex() {
+        return bestIndex;
+    }
+
+    // the best child's move code followed by its principal variation
+    synchronized long[] getBestLine() {
+        return bestLine;
+    }
+
+    private class YoungerBrother extends RecursiveAction {
+        private final int index;
+
+        YoungerBrother(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            if(!agent.isTimeUp()) {
+                searchChild(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * A fixed size hash table of previously searched positions, indexed by GameState.getHash().
+ *
+ * Each entry remembers the depth the position was searched to, the value found, whether that value
+ * is exact or only a lower/upper bound (because of an alpha-beta cutoff), and the move code of the best child.
+ * The entries are kept in parallel primitive arrays so probing and storing never allocate.
+ *
+ * The table is kept between turns. Every search starts a new generation so that the depth
+ * preferred policy can still replace deep entries left over from earlier turns.
+ *
+ * The table is shared by all of the threads of a parallel search without locking. Instead of the hash,
+ * each slot's key holds the hash xored with the rest of the entry, so an entry that was half written by
+ * another thread no longer matches its hash and probe simply treats it as missing.
+ */
+public class TranspositionTable {
+
+    public static final byte EXACT = 0;
+    public static final byte LOWER_BOUND = 1;  // the real value is >= the stored value (beta cutoff)
+    public static final byte UPPER_BOUND = 2;  // the real value is <= the stored value (all children failed low)
+
+    /*
+     * ALWAYS_REPLACE overwrites whatever is in the slot.
+     * DEPTH_PREFERRED keeps an entry from the current search if it was searched deeper than the new one.
+     */
+    public enum ReplacementPolicy {
+        ALWAYS_REPLACE,
+        DEPTH_PREFERRED
+    }
+
+    /**
+     * A copy of one entry, filled in by probe. Each search thread reuses its own.
+     */
+    public static class Entry {
+        public int depth;
+        public byte flag;
+        public double value;
+        public long bestMove;  // the move code (GameState.getMove) of the best child found, or 0 if none was
+    }
+
+    private final int mask;
+    private final ReplacementPolicy policy;
+
+    private final long[] keys;    // hash ^ value ^ bestMove ^ info
+    private final long[] values;  // Double.doubleToRawLongBits of the value
+    private final long[] bestMoves;
+    private final long[] infos;   // depth in bits 0-7, flag in bits 8-15, generation in bits 16-23
+    private volatile int generation;
+
+    /**
+     * @param size The number of entries, rounded down to a power of two
+     * @param policy What to do when two positions map to the same slot
+     */
+    public TranspositionTable(int size, ReplacementPolicy policy) {
+        int entries = Integer.highestOneBit(Math.max(size, 1));
+        this.mask = entries - 1;
+        this.policy = policy;
+        keys = new long[entries];
+        values = new long[entries];
+        bestMoves = new long[entries];
+        infos = new long[entries];
+    }
+
+    // called once per search so entries from earlier turns can be told apart
+    public void newSearch() {
+        generation = (generation + 1) & 0xFF;
+    }
+
+    /**
+     * Looks up a position.
+     * @param hash The hash of the position
+     * @param entry Filled in with the stored entry if the position is found
+     * @return Whether the position is in the table
+     */
+    public boolean probe(long hash, Entry entry) {
+        int slot = (int) hash & mask;
+        long value = values[slot];
+        long bestMove = bestMoves[slot];
+        long info = infos[slot];
+        // a zero key marks an empty slot, so a position hashing to 0 is simply never found
+        if(hash == 0 || (keys[slot] ^ value ^ bestMove ^ info) != hash) {
+            return false;
+        }
+        entry.depth = (int) (info & 0xFF);
+        entry.flag = (byte) (info >>> 8);
+        entry.value = Double.longBitsToDouble(value);
+        entry.bestMove = bestMove;
+        return true;
+    }
+
+    /**
+     * Records the result of searching a position, subject to the replacement policy.
+     *
+     * @param hash The hash of the position
+     * @param depth The remaining depth it was searched to
+     * @param value The value found
+     * @param flag EXACT, LOWER_BOUND or UPPER_BOUND
+     * @param bestMove The move code of the best child, or 0 if unknown
+     */
+    public void store(long hash, int depth, double value, byte flag, long bestMove) {
+        int slot = (int) hash & mask;
+        long oldBestMove = bestMoves[slot];
+        long oldInfo = infos[slot];
+        boolean samePosition = (keys[slot] ^ values[slot] ^ oldBestMove ^ oldInfo) == hash;
+        if(policy == ReplacementPolicy.DEPTH_PREFERRED
+                && !samePosition
+                && ((oldInfo >>> 16) & 0xFF) == generation
+                && (oldInfo & 0xFF) > depth) {
+            return;
+        }
+        if(samePosition && bestMove == 0) {
+            // keep the best move from an earlier search of the same position
+            bestMove = oldBestMove;
+        }
+        long info = Math.min(depth, 0xFF) | ((long) (flag & 0xFF) << 8) | ((long) generation << 16);
+        long valueBits = Double.doubleToRawLongBits(value);
+        keys[slot] = hash ^ valueBits ^ bestMove ^ info;
+        values[slot] = valueBits;
+        bestMoves[slot] = bestMove;
+        infos[slot] = info;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+}
@@ -0,0 +1,89 @@
+package edu.cwru.sepia.agent.minimax;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JointFactoredTest {
+
+    // two footmen next to an archer one hit from dying and a second archer that both can reach, won in two turns
+    private static TestStates focusFire() {
+        return new TestStates(10, 10).footman(4, 4, 40).footman(4, 6, 40).archer(4, 5, 11).archer(5, 5, 30);
+    }
+
+    // damaged units part way through a game, the archers in range of one footman but not the other
+    private static TestStates skirmish() {
+        return new TestStates(12, 12).footman(3, 3, 52).footman(6, 2, 21).archer(7, 3, 26).archer(6, 7, 40);
+    }
+
+    // three footmen closing in, one of them badly hurt, against a fresh and a wounded archer
+    private static TestStates threeFootmen() {
+        return new TestStates(12, 12).footman(2, 5, 90).footman(5, 4, 17).footman(4, 8, 60)
+                .archer(7, 5, 35).archer(8, 8, 18);
+    }
+
+    @Test
+    public void aLaterAttackIsAimedAfterTheEarlierOnes() {
+        long bothKill = GameState.ATTACK_CODE | (long) (GameState.ATTACK_CODE + 1) << 8;
+        boolean found = false;
+        for(GameStateChild child: focusFire().state(true, false).generateChildren()) {
+            found |= child.state.getMove() == bothKill;
+        }
+        assertTrue(found);
+
+        Iterator<GameStateChild> first = focusFire().state(true, true).tacticalChildren(null);
+        GameState killed = first.next().state;
+        assertFalse(first.hasNext());
+        Iterator<GameStateChild> second = killed.tacticalChildren(null);
+        assertEquals(bothKill, second.next().state.getTurnMove());
+        assertFalse(second.hasNext());
+    }
+
+    @Test
+    public void focusFireValuesAgree() {
+        assertAgree(focusFire(), true);
+        assertAgree(focusFire(), false);
+    }
+
+    @Test
+    public void skirmishValuesAgree() {
+        assertAgree(skirmish(), true);
+        assertAgree(skirmish(), false);
+    }
+
+    @Test
+    public void threeFootmenValuesAgree() {
+        assertAgree(threeFootmen(), true);
+        assertAgree(threeFootmen(), false);
+    }
+
+    /*
+     * A joint and a factored search of the position to depths 1 to 3 find the same value, with and without quiescence.
+     * Won and lost values are moved by the plies to the end, which are more in a factored search, so of those
+     * only the side that wins has to be the same.
+     */
+    private static void assertAgree(TestStates position, boolean myTurnNext) {
+        for(String quiescence: new String[] {"quiescence=0", "quiescence=1"}) {
+            for(int depth = 1; depth <= 3; depth++) {
+                String message = quiescence + " depth " + depth;
+                double joint = value(position.state(myTurnNext, false), depth, quiescence);
+                double factored = value(position.state(myTurnNext, true), depth, quiescence);
+                if(Math.abs(joint) > GameState.WIN_THRESHOLD) {
+                    assertEquals(message, Math.signum(joint), Math.signum(factored), 0);
+                    assertTrue(message, Math.abs(factored) > GameState.WIN_THRESHOLD);
+                } else {
+                    assertEquals(message, joint, factored, 1e-9);
+                }
+            }
+        }
+    }
+
+    private static double value(GameState state, int depth, String quiescence) {
+        MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0, new String[] {Integer.toString(depth), "tt=0", quiescence});
+        return agent.getWorker().alphaBetaValue(state, 0, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+}
@@ -0,0 +1,60 @@
+package edu.cwru.sepia.agent.minimax;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuiescenceTest {
+
+    // the first footman is far from the archer and has nothing tactical to do, the second stands next to it
+    private static TestStates secondFootmanCanAttack() {
+        return new TestStates(10, 10).footman(0, 0, 160).footman(8, 8, 160).archer(9, 9, 50);
+    }
+
+    @Test
+    public void aTurnIsNotQuietWhenOnlyALaterUnitCanAttack() {
+        GameState joint = secondFootmanCanAttack().state(true, false);
+        GameState factored = secondFootmanCanAttack().state(true, true);
+        assertTrue(joint.tacticalChildren(null).hasNext());
+        assertTrue(factored.tacticalChildren(null).hasNext());
+    }
+
+    @Test
+    public void theFirstUnitStaysAndTheTurnIsPlayedOut() {
+        Iterator<GameStateChild> children = secondFootmanCanAttack().state(true, true).tacticalChildren(null);
+        GameState stayed = children.next().state;
+        assertFalse(children.hasNext());
+        assertTrue(stayed.midTurn());
+        // the second footman's attack, even though the first one's sub-ply changed nothing
+        Iterator<GameStateChild> attacks = stayed.tacticalChildren(null);
+        GameState attacked = attacks.next().state;
+        assertFalse(attacks.hasNext());
+        assertFalse(attacked.midTurn());
+        assertEquals(GameState.ATTACK_CODE << 8, attacked.getTurnMove());
+    }
+
+    @Test
+    public void factoredQuiescenceValuesTheWholeTurn() {
+        for(int depth = 1; depth <= 2; depth++) {
+            assertEquals(value(secondFootmanCanAttack().state(true, false), depth),
+                    value(secondFootmanCanAttack().state(true, true), depth), 1e-9);
+        }
+    }
+
+    @Test
+    public void aQuietStateHasNoTacticalChildren() {
+        GameState state = new TestStates(10, 10).footman(0, 0, 160).footman(0, 1, 160).archer(9, 9, 50)
+                .state(true, true);
+        assertFalse(state.tacticalChildren(null).hasNext());
+    }
+
+    // the value of a search to the given depth with up to 2 turns of quiescence search after it
+    private static double value(GameState state, int depth) {
+        MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0, new String[] {Integer.toString(depth), "tt=0", "quiescence=2"});
+        return agent.getWorker().alphaBetaValue(state, 0, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+}
@@ -0,0 +1,78 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds small GameStates for the tests without SEPIA, through the format GameState.read takes.
+ * Units get the stats of the footmen and archers of data/Game2fv1a_Obstacles.xml.
+ */
+class TestStates {
+
+    private final GameMap map;
+    private final List<int[]> footmen = new ArrayList<int[]>();
+    private final List<int[]> archers = new ArrayList<int[]>();
+
+    /**
+     * @param xSize The width of an empty map
+     * @param ySize Its height
+     */
+    TestStates(int xSize, int ySize) {
+        map = new GameMap(xSize, ySize, new int[0], new int[0]);
+    }
+
+    TestStates footman(int x, int y, int hp) {
+        footmen.add(new int[] {x, y, hp});
+        return this;
+    }
+
+    TestStates archer(int x, int y, int hp) {
+        archers.add(new int[] {x, y, hp});
+        return this;
+    }
+
+    /**
+     * @param myTurnNext Whether the footmen move next
+     * @param factored Whether the search splits each turn into one sub-ply per unit
+     * @return A state at the start of a turn with the units added so far
+     */
+    GameState state(boolean myTurnNext, boolean factored) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            map.write(out);
+            out.writeInt(footmen.size());
+            out.writeInt(footmen.size() + archers.size());
+            int id = 0;
+            for(int[] unit: footmen) {
+                // id, group, range, basic attack, piercing attack, armor, position, HP
+                writeUnit(out, id++, 0, 1, 8, 3, 2, unit);
+            }
+            for(int[] unit: archers) {
+                writeUnit(out, id++, 1, 4, 3, 6, 0, unit);
+            }
+            out.writeBoolean(myTurnNext);
+            out.writeBoolean(factored);
+            return GameState.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeUnit(DataOutputStream out, int id, int group, int range, int attack, int piercing, int armor,
+                           int[] unit) throws IOException {
+        out.writeInt(id);
+        out.writeInt(group);
+        out.writeInt(range);
+        out.writeInt(attack);
+        out.writeInt(piercing);
+        out.writeInt(armor);
+        out.writeInt(map.cell(unit[0], unit[1]));
+        out.writeInt(unit[2]);
+    }
+}